@@ -0,0 +1,248 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageIO;
+
+/**
+ * Renders quadrant tree levels and regions of images to PNG files without a
+ * window, for instance to produce previews on a server with no display.
+ *
+ * Every input is opened with QuadTreeRenderer.open, so images, large images
+ * and .qtree files are read as in Gui. A level is written with one pixel per
+ * node, so level 6 of any image is a 64x64 preview; a region is written as
+ * the canvas of QuadTreeRenderer.drawViewport. The inputs are rendered in
+ * parallel, one renderer per input, and a directory stands for the images it
+ * contains. Levels deeper than the leaves are written at the level of the
+ * leaves.
+ *
+ * The files of an input are named after the input without its suffix, so two
+ * inputs such as a.png and a.jpg, or files of the same name in two directories
+ * written to one output directory, would write the same files. Only the first
+ * of them is rendered; the others fail.
+ *
+ * @author adamm
+ */
+public class BatchRenderer {
+
+	private int[] levels = {};
+	private List<int[]> regions = new ArrayList<>();  // x, y and size of each region
+	private File output;
+	private int tolerance;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private AtomicInteger written = new AtomicInteger(), failed = new AtomicInteger();
+
+	/**
+	 * Renders the given inputs to PNG files.
+	 *
+	 * @param args The options followed by the image files or directories:
+	 *             -l levels, the comma-separated levels to write; -r x,y,size,
+	 *             a square region to write, which can be repeated; -o dir, the
+	 *             output directory, by default that of each input; -t tolerance,
+	 *             to compress uniform regions; -j threads, the number of inputs
+	 *             rendered at once.
+	 * @throws InterruptedException if interrupted while waiting for the inputs.
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		System.setProperty("java.awt.headless", "true");
+		BatchRenderer batch = new BatchRenderer();
+		List<File> inputs = new ArrayList<>();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if (arg.startsWith("-") && i + 1 == args.length) {
+					throw new NumberFormatException("Missing value of " + arg);
+				}
+				if (arg.equals("-l")) {
+					batch.levels = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+				} else if (arg.equals("-r")) {
+					int[] region = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+					if (region.length != 3 || region[2] < 1) {
+						throw new NumberFormatException("A region is x,y,size");
+					}
+					batch.regions.add(region);
+				} else if (arg.equals("-o")) {
+					batch.output = new File(args[++i]);
+				} else if (arg.equals("-t")) {
+					batch.tolerance = Integer.parseInt(args[++i]);
+				} else if (arg.equals("-j")) {
+					batch.threads = Math.max(1, Integer.parseInt(args[++i]));
+				} else {
+					addInputs(new File(arg), inputs);
+				}
+			}
+		} catch (NumberFormatException e) {
+			System.out.println(e.getMessage());
+			inputs.clear();
+		}
+		if (inputs.isEmpty() || (batch.levels.length == 0 && batch.regions.isEmpty())) {
+			System.out.println("Usage: java BatchRenderer [-l level,...] [-r x,y,size]... [-o dir] [-t tolerance] "
+					+ "[-j threads] image|dir...");
+			return;
+		}
+		if (batch.output != null) {
+			batch.output.mkdirs();
+		}
+
+		long start = System.nanoTime();
+		batch.renderAll(inputs);
+		System.out.println("Wrote " + batch.written + " images from " + inputs.size() + " inputs in "
+				+ (System.nanoTime() - start) / 1000000 + " ms, " + batch.failed + " failed");
+		if (batch.failed.get() > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Adds a file to the inputs, or the image files of a directory in the order
+	 * of their names.
+	 *
+	 * @param file   A file or directory.
+	 * @param inputs The inputs.
+	 */
+	private static void addInputs(File file, List<File> inputs) {
+		if (!file.isDirectory()) {
+			inputs.add(file);
+			return;
+		}
+		File[] files = file.listFiles(f -> f.isFile() && isImage(f.getName()));
+		if (files != null) {
+			Arrays.sort(files);
+			inputs.addAll(Arrays.asList(files));
+		}
+	}
+
+	/**
+	 * Checks if a file name has the suffix of an image ImageIO can read, or of a
+	 * .qtree file.
+	 *
+	 * @param name A file name.
+	 * @return True if the file can be rendered, otherwise false.
+	 */
+	private static boolean isImage(String name) {
+		int dot = name.lastIndexOf('.');
+		if (dot < 0) {
+			return false;
+		}
+		String suffix = name.substring(dot + 1).toLowerCase();
+		return suffix.equals("qtree") || Arrays.asList(ImageIO.getReaderFileSuffixes()).contains(suffix);
+	}
+
+	/**
+	 * Renders every input on a pool of threads and waits for all of them.
+	 *
+	 * @param inputs The inputs.
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	private void renderAll(List<File> inputs) throws InterruptedException {
+		List<File> rendered = claimOutputs(inputs);
+		if (rendered.isEmpty()) {
+			return;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, rendered.size()));
+		for (File input : rendered) {
+			pool.submit(() -> render(input));
+		}
+		pool.shutdown();
+		pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Gets the inputs whose output files are not written by an earlier input.
+	 * The other inputs are reported as failed, since the inputs are rendered in
+	 * parallel and their writes would silently overwrite each other.
+	 *
+	 * @param inputs The inputs.
+	 * @return The inputs to render, in the same order.
+	 */
+	List<File> claimOutputs(List<File> inputs) {
+		Map<String, File> owners = new HashMap<>();
+		List<File> claimed = new ArrayList<>();
+		for (File input : inputs) {
+			File owner = owners.putIfAbsent(outputBase(input), input);
+			if (owner == null) {
+				claimed.add(input);
+			} else {
+				failed.incrementAndGet();
+				System.out.println(input + ": same output files as " + owner);
+			}
+		}
+		return claimed;
+	}
+
+	/**
+	 * Gets the path the names of the output files of an input start with.
+	 *
+	 * @param input The input file.
+	 * @return The output directory and the name of the input without its suffix.
+	 */
+	private String outputBase(File input) {
+		String name = input.getName();
+		int dot = name.lastIndexOf('.');
+		File directory = (output != null) ? output : input.getAbsoluteFile().getParentFile();
+		return new File(directory, dot > 0 ? name.substring(0, dot) : name).toPath().normalize().toString();
+	}
+
+	/**
+	 * Writes the requested levels and regions of one input, reporting any error
+	 * instead of stopping the other inputs.
+	 *
+	 * @param input The input file.
+	 */
+	private void render(File input) {
+		long start = System.nanoTime();
+		String base = outputBase(input);
+		int count = 0;
+		QuadTreeRenderer renderer = null;
+		try {
+			// Nothing is drawn twice, so the renderer keeps no cache
+			renderer = QuadTreeRenderer.open(input, tolerance, new RenderCache(0));
+			QTreeNode root = renderer.getTree().getRoot();
+			int depth = Integer.numberOfTrailingZeros(root.getSize());
+			for (int level : levels) {
+				BufferedImage image = renderer.drawLevel(root, Math.min(level, depth));
+				write(image, new File(base + "-" + level + ".png"));
+				count++;
+			}
+			for (int[] region : regions) {
+				BufferedImage image = renderer.drawViewport(region[0], region[1], region[2]);
+				write(image, new File(base + "-" + region[0] + "-" + region[1] + "-" + region[2] + ".png"));
+				count++;
+			}
+			System.out.println(input + ": " + count + " images in " + (System.nanoTime() - start) / 1000000 + " ms");
+		} catch (Exception e) {
+			failed.incrementAndGet();
+			System.out.println(input + ": " + e.getMessage());
+		} finally {
+			written.addAndGet(count);
+			if (renderer != null && renderer.getTree() instanceof TiledPyramid) {
+				try {
+					((TiledPyramid) renderer.getTree()).close();
+				} catch (IOException e) {
+					System.out.println(input + ": " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes an image to a PNG file.
+	 *
+	 * @param image The image.
+	 * @param file  The file.
+	 * @throws IOException if the file cannot be written.
+	 */
+	private static void write(BufferedImage image, File file) throws IOException {
+		if (!ImageIO.write(image, "png", file)) {
+			throw new IOException("No PNG writer");
+		}
+	}
+}
@@ -0,0 +1,272 @@
+/**
+ * Builds a quadrant tree from the leaves up. Every parent gets its average
+ * color from the channel sums of its four children, so each pixel is read
+ * exactly once and the whole construction is a single linear pass.
+ *
+ * Like QuadrantTree.build, a leaf at (x,y) stores pixels[x][y], while the
+ * averages of the internal nodes are taken over the rows starting at y and the
+ * columns starting at x, as in Gui.averageColor. The channel sums therefore
+ * follow Gui.averageColor, wrapping around past 2^32 and read as unsigned in
+ * the same way, and the resulting tree is identical to the one built
+ * recursively at every size.
+ *
+ * With a tolerance greater than 0 the builder compresses the tree: a node
+ * whose pixels differ by less than the tolerance in every channel, like two
+ * colors accepted by Gui.similarColor, becomes a leaf with the average color
+ * of its pixels and its subtree is never created.
+ *
+ * DagQuadrantTree and TemporalQuadrantTree build their nodes with the same
+ * merge, through mergeLevels.
+ *
+ * @author adamm
+ */
+public class BottomUpBuilder {
+
+	/**
+	 * Creates the parent of four nodes for mergeLevels, whose channel sums are
+	 * already stored at index p.
+	 */
+	interface MergeStep {
+
+		/**
+		 * Creates the parent of the four nodes at the given indices and stores it
+		 * at index p.
+		 *
+		 * @param p     The index where the parent is stored.
+		 * @param c0    The index of the upper left child.
+		 * @param c1    The index of the upper right child.
+		 * @param c2    The index of the lower left child.
+		 * @param c3    The index of the lower right child.
+		 * @param px    The column of the parent within its level.
+		 * @param py    The row of the parent within its level.
+		 * @param size  The size of the parent.
+		 * @param color The average color of the parent.
+		 */
+		void merge(int p, int c0, int c1, int c2, int c3, int px, int py, int size, int color);
+	}
+
+	private int tolerance;
+	private QTreeNode[] nodes;        // Built nodes; null for a leaf not created yet
+	private int[] color;              // Colors of the leaves not created yet
+	private int[] red, green, blue;   // Channel sums
+	private int[] min, max;           // Channel bounds of the pixels, only when compressing
+
+	/**
+	 * Constructs a BottomUpBuilder that builds the full tree.
+	 */
+	public BottomUpBuilder() {
+		this(0);
+	}
+
+	/**
+	 * Constructs a BottomUpBuilder that compresses uniform regions.
+	 *
+	 * @param theTolerance Regions whose pixels differ by less than this value in
+	 *                     every channel become leaves; 0 builds the full tree.
+	 */
+	public BottomUpBuilder(int theTolerance) {
+		if (theTolerance < 0) {
+			throw new QTreeException("Invalid tolerance");
+		}
+		this.tolerance = theTolerance;
+	}
+
+	/**
+	 * Builds the quadrant tree of the given pixels array.
+	 *
+	 * @param thePixels The 2D array representing pixel values.
+	 * @return The root node of the constructed quadrant tree.
+	 */
+	public QTreeNode build(int[][] thePixels) {
+		return build(new PixelGrid(thePixels));
+	}
+
+	/**
+	 * Builds the quadrant tree of the given pixels.
+	 *
+	 * @param thePixels The pixels, read in place.
+	 * @return The root node of the constructed quadrant tree.
+	 */
+	public QTreeNode build(PixelGrid thePixels) {
+		int width = thePixels.getSize();
+		int count = width * width;
+		nodes = new QTreeNode[count];
+		color = new int[count];
+		red = new int[count];
+		green = new int[count];
+		blue = new int[count];
+		if (tolerance > 0) {
+			min = new int[count];
+			max = new int[count];
+		}
+
+		// Read the pixels; the leaves are only created when their parent is
+		// kept
+		for (int y = 0; y < width; y++) {
+			for (int x = 0; x < width; x++) {
+				int i = y * width + x;
+				int pixel = thePixels.get(y, x);
+				red[i] = (pixel >> 16) & 0xFF;
+				green[i] = (pixel >> 8) & 0xFF;
+				blue[i] = pixel & 0xFF;
+				color[i] = thePixels.get(x, y);
+				if (min != null) {
+					min[i] = max[i] = pixel & 0xFFFFFF;
+				}
+			}
+		}
+
+		mergeLevels(width, red, green, blue, this::mergeChildren);
+
+		QTreeNode root = nodes[0];
+		if (root == null) {
+			root = new QTreeNode(null, 0, 0, width, color[0]);
+		}
+		nodes = null;
+		color = red = green = blue = min = max = null;
+		return root;
+	}
+
+	/**
+	 * Merges each block of four nodes into its parent, one level at a time, from
+	 * the leaves up to the root. The nodes of a level are stored row by row, the
+	 * leaves at index y * width + x; a parent is stored at an index no larger
+	 * than those of its children, so every level is written over the one below
+	 * it. The channel sums of every parent are stored before step creates it.
+	 *
+	 * @param width The number of leaves in a row, a power of two.
+	 * @param red   The red sums, starting with the leaves.
+	 * @param green The green sums, starting with the leaves.
+	 * @param blue  The blue sums, starting with the leaves.
+	 * @param step  Creates and stores every parent.
+	 */
+	static void mergeLevels(int width, int[] red, int[] green, int[] blue, MergeStep step) {
+		int size = 1;
+		while (width > 1) {
+			int half = width / 2;
+			size = size * 2;
+			for (int py = 0; py < half; py++) {
+				for (int px = 0; px < half; px++) {
+					int c0 = (2 * py) * width + 2 * px;
+					int c1 = c0 + 1, c2 = c0 + width, c3 = c2 + 1;
+					int p = py * half + px;
+					int r = red[c0] + red[c1] + red[c2] + red[c3];
+					int g = green[c0] + green[c1] + green[c2] + green[c3];
+					int b = blue[c0] + blue[c1] + blue[c2] + blue[c3];
+					red[p] = r;
+					green[p] = g;
+					blue[p] = b;
+					step.merge(p, c0, c1, c2, c3, px, py, size, averageColor(r, g, b, size));
+				}
+			}
+			width = half;
+		}
+	}
+
+	/**
+	 * Creates the parent of the four nodes at the given indices and stores it at
+	 * index p. If the parent's pixels are uniform within the tolerance it is left
+	 * as a leaf to be created later.
+	 *
+	 * @param p        The index where the parent is stored.
+	 * @param c0       The index of the upper left child.
+	 * @param c1       The index of the upper right child.
+	 * @param c2       The index of the lower left child.
+	 * @param c3       The index of the lower right child.
+	 * @param px       The column of the parent within its level.
+	 * @param py       The row of the parent within its level.
+	 * @param size     The size of the parent.
+	 * @param avgColor The average color of the parent.
+	 */
+	private void mergeChildren(int p, int c0, int c1, int c2, int c3, int px, int py, int size, int avgColor) {
+		int x = px * size, y = py * size;
+		boolean uniform = false;
+		if (min != null) {
+			int lo = ColorBounds.channelMin(ColorBounds.channelMin(min[c0], min[c1]), ColorBounds.channelMin(min[c2], min[c3]));
+			int hi = ColorBounds.channelMax(ColorBounds.channelMax(max[c0], max[c1]), ColorBounds.channelMax(max[c2], max[c3]));
+			uniform = nodes[c0] == null && nodes[c1] == null && nodes[c2] == null && nodes[c3] == null
+					&& withinTolerance(lo, hi);
+			min[p] = lo;
+			max[p] = hi;
+		}
+
+		QTreeNode node = null;
+		if (!uniform) {
+			int half = size / 2;
+			node = new QTreeNode(new QTreeNode[4], x, y, size, avgColor);
+			attach(node, child(c0, x, y, half), 0);
+			attach(node, child(c1, x + half, y, half), 1);
+			attach(node, child(c2, x, y + half, half), 2);
+			attach(node, child(c3, x + half, y + half, half), 3);
+		}
+
+		nodes[p] = node;
+		color[p] = avgColor;
+	}
+
+	/**
+	 * Gets the node at index i, creating it as a leaf if it has not been created
+	 * yet.
+	 *
+	 * @param i    The index of the node.
+	 * @param x    The x-coordinate of the node.
+	 * @param y    The y-coordinate of the node.
+	 * @param size The size of the node.
+	 * @return The node.
+	 */
+	private QTreeNode child(int i, int x, int y, int size) {
+		if (nodes[i] != null) {
+			return nodes[i];
+		}
+		return new QTreeNode(null, x, y, size, color[i]);
+	}
+
+	/**
+	 * Checks if every channel varies by less than the tolerance between the given
+	 * bounds.
+	 *
+	 * @param lo The lower channel bounds, packed as a color.
+	 * @param hi The upper channel bounds, packed as a color.
+	 * @return True if the bounds are within the tolerance, otherwise false.
+	 */
+	private boolean withinTolerance(int lo, int hi) {
+		for (int shift = 0; shift <= 16; shift += 8) {
+			if (((hi >> shift) & 0xFF) - ((lo >> shift) & 0xFF) >= tolerance) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Makes child the child of parent at the given index.
+	 *
+	 * @param parent The parent node.
+	 * @param child  The child node.
+	 * @param index  The index of the child.
+	 */
+	static void attach(QTreeNode parent, QTreeNode child, int index) {
+		parent.setChild(child, index);
+		child.setParent(parent);
+	}
+
+	/**
+	 * Converts channel sums over a square region into the average color of the
+	 * region, rounding like Gui.averageColor. The sums are taken modulo 2^32
+	 * and read as unsigned like there, which is exact for regions of up to
+	 * 4096x4096 pixels.
+	 *
+	 * @param r    The sum of the red channel.
+	 * @param g    The sum of the green channel.
+	 * @param b    The sum of the blue channel.
+	 * @param size The size of the region.
+	 * @return The average color of the region.
+	 */
+	static int averageColor(int r, int g, int b, int size) {
+		long n = (long) size * size;
+		int red = (int) ((r & 0xFFFFFFFFL) / n);
+		int green = (int) ((g & 0xFFFFFFFFL) / n);
+		int blue = (int) ((b & 0xFFFFFFFFL) / n);
+		return ((red & 0xFF) << 16) + ((green & 0xFF) << 8) + (blue & 0xFF);
+	}
+}
@@ -0,0 +1,182 @@
+/**
+ * Per-channel bounds of the colors stored in every subtree of a quadrant tree.
+ * For each node the smallest and largest red, green and blue values among the
+ * colors of the node and all its descendants are kept, so every node a search
+ * can reach below it has a color within these bounds.
+ *
+ * The bounds let QuadrantTree skip a subtree whose colors cannot be similar to
+ * the color searched for, and accept a subtree whose colors all are, without
+ * testing its nodes one by one. Similarity is decided as in Gui.similarColor.
+ *
+ * Bounds are stored per level in arrays ordered by the Morton code of the
+ * nodes' positions, like MortonIndex, so the tree itself is not changed.
+ *
+ * @author adamm
+ */
+public class ColorBounds {
+
+	/** No color in the subtree is similar to the color searched for. */
+	public static final int NONE = 0;
+	/** Some colors in the subtree may be similar to the color searched for. */
+	public static final int SOME = 1;
+	/** Every color in the subtree is similar to the color searched for. */
+	public static final int ALL = 2;
+
+	private static final int TOLERANCE = 15; // Gui.similarColor accepts channel differences below 15
+
+	private int[][] min, max;  // Packed 0xRRGGBB bounds, per level and Morton position
+	private int rootX, rootY, rootSize, depth;
+	private boolean full;      // True if every leaf has size 1
+
+	/**
+	 * Computes the color bounds of every subtree of the tree rooted at root.
+	 *
+	 * @param root The root node of the tree.
+	 */
+	public ColorBounds(QTreeNode root) {
+		this.rootX = root.getx();
+		this.rootY = root.gety();
+		this.rootSize = root.getSize();
+		this.depth = Integer.numberOfTrailingZeros(rootSize);
+		this.min = new int[depth + 1][];
+		this.max = new int[depth + 1][];
+		for (int k = 0; k <= depth; k++) {
+			min[k] = new int[1 << (2 * k)];
+			max[k] = new int[1 << (2 * k)];
+		}
+		this.full = true;
+		compute(root, 0);
+	}
+
+	/**
+	 * Computes the bounds of the subtree rooted at r and of all its subtrees.
+	 *
+	 * @param r     The root node of the subtree.
+	 * @param level The level of r.
+	 * @return The position of r within its level.
+	 */
+	private int compute(QTreeNode r, int level) {
+		int slot = slot(r, level);
+		int color = r.getColor() & 0xFFFFFF;
+		int lo = color, hi = color;
+		if (r.isLeaf()) {
+			if (r.getSize() > 1) {
+				full = false;
+			}
+		} else {
+			for (int i = 0; i < 4; i++) {
+				int child = compute(r.getChild(i), level + 1);
+				lo = channelMin(lo, min[level + 1][child]);
+				hi = channelMax(hi, max[level + 1][child]);
+			}
+		}
+		min[level][slot] = lo;
+		max[level][slot] = hi;
+		return slot;
+	}
+
+	/**
+	 * Gets the position of a node within its level.
+	 *
+	 * @param r     A node of the tree.
+	 * @param level The level of r.
+	 * @return The Morton code of the position of r within its level.
+	 */
+	private int slot(QTreeNode r, int level) {
+		int size = rootSize >> level;
+		return (int) Morton.encode((r.getx() - rootX) / size, (r.gety() - rootY) / size);
+	}
+
+	/**
+	 * Gets the level of a node of the tree from its size.
+	 *
+	 * @param r A node of the tree.
+	 * @return The level of r.
+	 */
+	private int levelOf(QTreeNode r) {
+		return depth - Integer.numberOfTrailingZeros(r.getSize());
+	}
+
+	/**
+	 * Gets the smallest red, green and blue values of the colors in the subtree
+	 * rooted at r.
+	 *
+	 * @param r A node of the tree.
+	 * @return The lower bounds packed as a color.
+	 */
+	public int getMin(QTreeNode r) {
+		int level = levelOf(r);
+		return min[level][slot(r, level)];
+	}
+
+	/**
+	 * Gets the largest red, green and blue values of the colors in the subtree
+	 * rooted at r.
+	 *
+	 * @param r A node of the tree.
+	 * @return The upper bounds packed as a color.
+	 */
+	public int getMax(QTreeNode r) {
+		int level = levelOf(r);
+		return max[level][slot(r, level)];
+	}
+
+	/**
+	 * Checks if every leaf of the tree has size 1, so every subtree is full.
+	 *
+	 * @return True if the tree is full, otherwise false.
+	 */
+	public boolean isFull() {
+		return this.full;
+	}
+
+	/**
+	 * Decides how many colors in the subtree rooted at r can be similar to the
+	 * given color.
+	 *
+	 * @param r        A node of the tree.
+	 * @param theColor The color searched for.
+	 * @return NONE, SOME or ALL.
+	 */
+	public int classify(QTreeNode r, int theColor) {
+		int level = levelOf(r);
+		int slot = slot(r, level);
+		int lo = min[level][slot];
+		int hi = max[level][slot];
+		boolean all = true;
+		for (int shift = 0; shift <= 16; shift += 8) {
+			int c = (theColor >> shift) & 0xFF;
+			int l = (lo >> shift) & 0xFF;
+			int h = (hi >> shift) & 0xFF;
+			if (h <= c - TOLERANCE || l >= c + TOLERANCE) {
+				return NONE;
+			}
+			if (h - c >= TOLERANCE || c - l >= TOLERANCE) {
+				all = false;
+			}
+		}
+		return all ? ALL : SOME;
+	}
+
+	/**
+	 * Computes the channel-wise minimum of two packed colors.
+	 *
+	 * @param a A color.
+	 * @param b A color.
+	 * @return The smallest red, green and blue values, packed as a color.
+	 */
+	static int channelMin(int a, int b) {
+		return Math.min(a & 0xFF0000, b & 0xFF0000) | Math.min(a & 0xFF00, b & 0xFF00) | Math.min(a & 0xFF, b & 0xFF);
+	}
+
+	/**
+	 * Computes the channel-wise maximum of two packed colors.
+	 *
+	 * @param a A color.
+	 * @param b A color.
+	 * @return The largest red, green and blue values, packed as a color.
+	 */
+	static int channelMax(int a, int b) {
+		return Math.max(a & 0xFF0000, b & 0xFF0000) | Math.max(a & 0xFF00, b & 0xFF00) | Math.max(a & 0xFF, b & 0xFF);
+	}
+}
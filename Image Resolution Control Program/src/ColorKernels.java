@@ -0,0 +1,231 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Batch versions of Gui.averageColor and Gui.similarColor over packed ARGB int
+ * rows and arrays of node colors. The loops have no branches and no calls, so
+ * the JIT compiler can unroll them and turn them into SIMD instructions, and
+ * the results are bit for bit those of the scalar methods in Gui, which remain
+ * the reference.
+ *
+ * averageColor reads the pixels row by row instead of column by column, and
+ * adds the red and blue channels of a pixel in one operation: masked with
+ * 0x00FF00FF, a pixel holds red in the upper half and blue in the lower half,
+ * and up to CHUNK such values can be added before the blue sum overflows into
+ * the red one. The totals are kept in ints and read as unsigned like in
+ * Gui.averageColor, so they wrap around in the same way for very large regions.
+ *
+ * similarColor tests the three channel differences without branches: a
+ * difference d is below 15 in absolute value when neither d + 14 nor 28 - (d
+ * + 14) is negative, so the sign bits of the six values, or-ed together, tell
+ * whether the colors are similar.
+ *
+ * VectorKernels, kept out of this source folder in ../vector because it needs
+ * the incubating jdk.incubator.vector module, computes the same results with
+ * the Vector API. When it is on the class path and the JVM runs with that
+ * module (java --add-modules jdk.incubator.vector), addChannels, countSimilar
+ * and findSimilar hand it runs of at least VECTOR_RUN values through method
+ * handles; otherwise the loops here are used.
+ *
+ * @author adamm
+ */
+public class ColorKernels {
+
+	/** Number of pixels whose red and blue channels can be added in one int. */
+	public static final int CHUNK = 256;
+
+	/** Shortest run handed to VectorKernels. */
+	public static final int VECTOR_RUN = 64;
+
+	private static final int TOLERANCE = 15; // Gui.similarColor accepts channel differences below 15
+
+	/* The methods of VectorKernels, or null if it cannot be used */
+	private static final MethodHandle VECTOR_ADD = vectorKernel("addChannels",
+			MethodType.methodType(void.class, int[].class, int.class, int.class, int[].class));
+	private static final MethodHandle VECTOR_COUNT = vectorKernel("countSimilar",
+			MethodType.methodType(int.class, int[].class, int.class, int.class, int.class));
+	private static final MethodHandle VECTOR_FIND = vectorKernel("findSimilar",
+			MethodType.methodType(int.class, int[].class, int.class, int.class, int.class, int[].class));
+
+	/**
+	 * Checks if the Vector API versions of the kernels are used.
+	 *
+	 * @return True if VectorKernels is used, otherwise false.
+	 */
+	public static boolean usesVectorApi() {
+		return VECTOR_ADD != null && VECTOR_COUNT != null && VECTOR_FIND != null;
+	}
+
+	/**
+	 * Looks up a method of VectorKernels, if the jdk.incubator.vector module was
+	 * added to the JVM and VectorKernels is on the class path.
+	 *
+	 * @param name The name of the method.
+	 * @param type The type of the method.
+	 * @return The method, or null if VectorKernels cannot be used.
+	 */
+	private static MethodHandle vectorKernel(String name, MethodType type) {
+		if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+			return null;
+		}
+		try {
+			return MethodHandles.publicLookup().findStatic(Class.forName("VectorKernels"), name, type);
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Rethrows what a VectorKernels method threw, which is never a checked
+	 * exception.
+	 *
+	 * @param e The exception or error thrown.
+	 * @return Never returns; declared so that callers can throw the result.
+	 */
+	private static RuntimeException rethrow(Throwable e) {
+		if (e instanceof Error) {
+			throw (Error) e;
+		}
+		if (e instanceof RuntimeException) {
+			throw (RuntimeException) e;
+		}
+		throw new IllegalStateException(e);
+	}
+
+	/**
+	 * Computes the average color of the square region of pixels with upper left
+	 * corner at (x,y), exactly like Gui.averageColor.
+	 *
+	 * @param pixels The 2D array representing pixel values, indexed as
+	 *               [row][column].
+	 * @param x      The column of the upper left corner.
+	 * @param y      The row of the upper left corner.
+	 * @param size   The size of the region.
+	 * @return The average color of the region.
+	 */
+	public static int averageColor(int[][] pixels, int x, int y, int size) {
+		int[] sums = new int[3];
+		for (int j = y; j < y + size; j++) {
+			addChannels(pixels[j], x, x + size, sums);
+		}
+		return BottomUpBuilder.averageColor(sums[0], sums[1], sums[2], size);
+	}
+
+	/**
+	 * Adds the red, green and blue channels of a run of pixels to the given
+	 * sums. Like in Gui.averageColor the sums are ints and wrap around.
+	 *
+	 * @param row  The packed ARGB pixels.
+	 * @param from The index of the first pixel.
+	 * @param to   The index after the last pixel.
+	 * @param sums The red, green and blue sums, in that order.
+	 */
+	public static void addChannels(int[] row, int from, int to, int[] sums) {
+		if (VECTOR_ADD != null && to - from >= VECTOR_RUN) {
+			try {
+				VECTOR_ADD.invokeExact(row, from, to, sums);
+			} catch (Throwable e) {
+				throw rethrow(e);
+			}
+			return;
+		}
+		int red = 0, green = 0, blue = 0;
+		for (int start = from; start < to; start += CHUNK) {
+			int end = Math.min(start + CHUNK, to);
+			int redBlue = 0;
+			for (int i = start; i < end; i++) {
+				int pixel = row[i];
+				redBlue += pixel & 0x00FF00FF;
+				green += (pixel >>> 8) & 0xFF;
+			}
+			red += redBlue >>> 16;
+			blue += redBlue & 0xFFFF;
+		}
+		sums[0] += red;
+		sums[1] += green;
+		sums[2] += blue;
+	}
+
+	/**
+	 * Checks if two colors are similar, exactly like Gui.similarColor, without
+	 * branches.
+	 *
+	 * @param color1 A color.
+	 * @param color2 A color.
+	 * @return True if every channel differs by less than 15, otherwise false.
+	 */
+	public static boolean similarColor(int color1, int color2) {
+		return dissimilar(color1, color2) == 0;
+	}
+
+	/**
+	 * Counts the colors of a run of an array that are similar to the given
+	 * color.
+	 *
+	 * @param colors The colors, for instance those of a level of an
+	 *               ImplicitQuadrantTree.
+	 * @param from   The index of the first color.
+	 * @param to     The index after the last color.
+	 * @param color  The color to match.
+	 * @return The number of colors similar to color.
+	 */
+	public static int countSimilar(int[] colors, int from, int to, int color) {
+		if (VECTOR_COUNT != null && to - from >= VECTOR_RUN) {
+			try {
+				return (int) VECTOR_COUNT.invokeExact(colors, from, to, color);
+			} catch (Throwable e) {
+				throw rethrow(e);
+			}
+		}
+		int count = 0;
+		for (int i = from; i < to; i++) {
+			count += dissimilar(colors[i], color) ^ 1;
+		}
+		return count;
+	}
+
+	/**
+	 * Stores the indices of the colors of a run of an array that are similar to
+	 * the given color, in increasing order.
+	 *
+	 * @param colors  The colors.
+	 * @param from    The index of the first color.
+	 * @param to      The index after the last color.
+	 * @param color   The color to match.
+	 * @param indices The array receiving the indices, with room for to - from
+	 *                of them.
+	 * @return The number of indices stored.
+	 */
+	public static int findSimilar(int[] colors, int from, int to, int color, int[] indices) {
+		if (VECTOR_FIND != null && to - from >= VECTOR_RUN) {
+			try {
+				return (int) VECTOR_FIND.invokeExact(colors, from, to, color, indices);
+			} catch (Throwable e) {
+				throw rethrow(e);
+			}
+		}
+		int count = 0;
+		for (int i = from; i < to; i++) {
+			// Always store, and only advance past a match
+			indices[count] = i;
+			count += dissimilar(colors[i], color) ^ 1;
+		}
+		return count;
+	}
+
+	/**
+	 * Tests two colors for similarity.
+	 *
+	 * @param color1 A color.
+	 * @param color2 A color.
+	 * @return 0 if the colors are similar, otherwise 1.
+	 */
+	private static int dissimilar(int color1, int color2) {
+		int red = ((color1 >> 16) & 0xFF) - ((color2 >> 16) & 0xFF) + (TOLERANCE - 1);
+		int green = ((color1 >> 8) & 0xFF) - ((color2 >> 8) & 0xFF) + (TOLERANCE - 1);
+		int blue = (color1 & 0xFF) - (color2 & 0xFF) + (TOLERANCE - 1);
+		int limit = 2 * (TOLERANCE - 1);
+		return (red | (limit - red) | green | (limit - green) | blue | (limit - blue)) >>> 31;
+	}
+}
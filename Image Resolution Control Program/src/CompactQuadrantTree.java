@@ -0,0 +1,143 @@
+/**
+ * A quadrant tree stored as parallel primitive arrays instead of QTreeNode
+ * objects. Every node is an int ID; its color, coordinates, size and the ID of
+ * its first child are kept in arrays indexed by that ID. The four children of a
+ * node have consecutive IDs and nodes are numbered level by level, so the root
+ * has ID 0.
+ *
+ * The tree is read through QTreeNode views (see QTreeNodeView) that are created
+ * on demand, so getPixels, findNode, findMatching, DrawImage and
+ * QuadTreeRenderer work on it as on a QuadrantTree built from objects. The tree
+ * is identical to the one built by new QuadrantTree(pixels).
+ *
+ * @author adamm
+ */
+public class CompactQuadrantTree extends QuadrantTree {
+
+	private static final int ARRAY_HEADER_BYTES = 16; // Estimated, for a 64-bit JVM
+
+	private int[] color, x, y, size, firstChild;
+	private int nodeCount;
+	private int[][] sums; // Scratch channel sums, one row per level, used while building
+
+	/**
+	 * Constructs a CompactQuadrantTree from the given pixels array.
+	 *
+	 * @param thePixels The 2D array representing pixel values.
+	 */
+	public CompactQuadrantTree(int[][] thePixels) {
+		long start = System.nanoTime();
+		int width = thePixels.length;
+		int levels = 0;
+		while ((1 << levels) < width) {
+			levels++;
+		}
+		// A full quadrant tree with 4^levels leaves has (4^(levels+1) - 1) / 3 nodes
+		this.nodeCount = (int) ((((long) 1 << (2 * levels + 2)) - 1) / 3);
+		this.color = new int[nodeCount];
+		this.x = new int[nodeCount];
+		this.y = new int[nodeCount];
+		this.size = new int[nodeCount];
+		this.firstChild = new int[nodeCount];
+		this.sums = new int[levels + 2][3];
+
+		fill(thePixels, 0, 1, 0, 0, 0, width);
+		this.sums = null;
+		setRoot(new NodeView(null, 0));
+		setBuildTime(System.nanoTime() - start);
+	}
+
+	/**
+	 * Recursively stores the subtree of the square region with upper left corner
+	 * at (x,y) and adds its channel sums to those of its parent.
+	 *
+	 * @param pixels  The 2D array representing pixel values.
+	 * @param id      The ID of the current node.
+	 * @param next    The ID of the first node of the level below the current
+	 *                node.
+	 * @param level   The level of the current node.
+	 * @param xcoord  The x-coordinate of the current node.
+	 * @param ycoord  The y-coordinate of the current node.
+	 * @param theSize The size of the current node.
+	 */
+	private void fill(int[][] pixels, int id, int next, int level, int xcoord, int ycoord, int theSize) {
+		x[id] = xcoord;
+		y[id] = ycoord;
+		size[id] = theSize;
+		int[] parentSums = sums[level];
+		if (theSize == 1) {
+			color[id] = pixels[xcoord][ycoord];
+			firstChild[id] = -1;
+			int pixel = pixels[ycoord][xcoord];
+			parentSums[0] += (pixel >> 16) & 0xFF;
+			parentSums[1] += (pixel >> 8) & 0xFF;
+			parentSums[2] += pixel & 0xFF;
+			return;
+		}
+
+		// The nodes of level k + 1 start right after those of level k, and the
+		// children of the i-th node of a level are the nodes 4i to 4i + 3 of the
+		// level below.
+		int levelStart = (next - 1) / 4;
+		int child = next + 4 * (id - levelStart);
+		int childNext = 4 * next + 1;
+		firstChild[id] = child;
+
+		int[] own = sums[level + 1];
+		own[0] = own[1] = own[2] = 0;
+		int half = theSize / 2;
+		fill(pixels, child, childNext, level + 1, xcoord, ycoord, half);
+		fill(pixels, child + 1, childNext, level + 1, xcoord + half, ycoord, half);
+		fill(pixels, child + 2, childNext, level + 1, xcoord, ycoord + half, half);
+		fill(pixels, child + 3, childNext, level + 1, xcoord + half, ycoord + half, half);
+
+		int r = own[0], g = own[1], b = own[2];
+		color[id] = BottomUpBuilder.averageColor(r, g, b, theSize);
+		parentSums[0] += r;
+		parentSums[1] += g;
+		parentSums[2] += b;
+	}
+
+	/**
+	 * Gets the number of nodes in this quadrant tree.
+	 *
+	 * @return The number of nodes.
+	 */
+	@Override
+	public int getNodeCount() {
+		return this.nodeCount;
+	}
+
+	/**
+	 * Gets the number of bytes used by the arrays that store this tree.
+	 *
+	 * @return The memory used by this tree, in bytes.
+	 */
+	@Override
+	public long getMemoryUsage() {
+		return 5 * (ARRAY_HEADER_BYTES + 4L * nodeCount);
+	}
+
+	/**
+	 * A read-only view of the node with a given ID.
+	 */
+	private class NodeView extends QTreeNodeView {
+
+		private int id;
+
+		NodeView(QTreeNode theParent, int theId) {
+			super(theParent, x[theId], y[theId], size[theId], color[theId]);
+			this.id = theId;
+		}
+
+		@Override
+		public boolean isLeaf() {
+			return firstChild[id] < 0;
+		}
+
+		@Override
+		protected QTreeNode childView(int index) {
+			return new NodeView(this, firstChild[id] + index);
+		}
+	}
+}
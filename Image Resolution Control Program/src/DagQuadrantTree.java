@@ -0,0 +1,211 @@
+import java.util.HashMap;
+
+/**
+ * A quadrant tree in which identical subtrees are stored only once. While the
+ * tree is built bottom up, every subtree is looked up by its color and its four
+ * children (hash-consing); if an equal subtree exists it is reused, so the tree
+ * becomes a directed acyclic graph. Images with repeated blocks, like maps and
+ * scanned documents, share most of their subtrees.
+ *
+ * A shared subtree has no position of its own, so the tree is read through
+ * QTreeNode views that get their coordinates from the view they were reached
+ * from. getPixels, findMatching, findNode, DrawImage and QuadTreeRenderer
+ * therefore work on it unchanged, and the tree seen through the views is
+ * identical to the one built by new QuadrantTree(pixels).
+ *
+ * @author adamm
+ */
+public class DagQuadrantTree extends QuadrantTree {
+
+	/* Estimated sizes in bytes, for a 64-bit JVM with compressed references */
+	private static final int SHARED_NODE_BYTES = 24;    // header, color, id and children reference
+	private static final int CHILDREN_ARRAY_BYTES = 32; // header, length and 4 references
+
+	private int uniqueNodes, uniqueLeaves;
+	private int width;
+
+	/* Used while building */
+	private HashMap<SharedNode, SharedNode> unique;
+	private SharedNode probe;           // Reused lookup key
+	private SharedNode[] probeChildren;
+
+	/**
+	 * Constructs a DagQuadrantTree from the given pixels array.
+	 *
+	 * @param thePixels The 2D array representing pixel values.
+	 */
+	public DagQuadrantTree(int[][] thePixels) {
+		long start = System.nanoTime();
+		this.width = thePixels.length;
+		this.unique = new HashMap<>();
+		this.probe = new SharedNode(0, null);
+		this.probeChildren = new SharedNode[4];
+
+		int w = width;
+		int count = w * w;
+		SharedNode[] nodes = new SharedNode[count];
+		int[] red = new int[count];
+		int[] green = new int[count];
+		int[] blue = new int[count];
+
+		// Leaves
+		for (int y = 0; y < w; y++) {
+			for (int x = 0; x < w; x++) {
+				int i = y * w + x;
+				int pixel = thePixels[y][x];
+				red[i] = (pixel >> 16) & 0xFF;
+				green[i] = (pixel >> 8) & 0xFF;
+				blue[i] = pixel & 0xFF;
+				nodes[i] = intern(thePixels[x][y], null, null, null, null);
+			}
+		}
+
+		BottomUpBuilder.mergeLevels(w, red, green, blue, (p, c0, c1, c2, c3, px, py, size, color) -> {
+			nodes[p] = intern(color, nodes[c0], nodes[c1], nodes[c2], nodes[c3]);
+		});
+
+		SharedNode root = nodes[0];
+		this.unique = null;
+		this.probe = null;
+		this.probeChildren = null;
+		setRoot(new NodeView(null, root, 0, 0, width));
+		setBuildTime(System.nanoTime() - start);
+	}
+
+	/**
+	 * Gets the shared node with the given color and children, creating it if no
+	 * equal node exists yet.
+	 *
+	 * @param color The color of the node.
+	 * @param c0    The upper left child, or null for a leaf.
+	 * @param c1    The upper right child.
+	 * @param c2    The lower left child.
+	 * @param c3    The lower right child.
+	 * @return The shared node.
+	 */
+	private SharedNode intern(int color, SharedNode c0, SharedNode c1, SharedNode c2, SharedNode c3) {
+		probe.color = color;
+		probe.children = null;
+		if (c0 != null) {
+			probeChildren[0] = c0;
+			probeChildren[1] = c1;
+			probeChildren[2] = c2;
+			probeChildren[3] = c3;
+			probe.children = probeChildren;
+		}
+		SharedNode node = unique.get(probe);
+		if (node == null) {
+			node = new SharedNode(color, (c0 == null) ? null : probeChildren.clone());
+			node.id = uniqueNodes++;
+			if (c0 == null) {
+				uniqueLeaves++;
+			}
+			unique.put(node, node);
+		}
+		return node;
+	}
+
+	/**
+	 * Gets the number of nodes of the tree, counting every shared subtree once
+	 * per place it appears.
+	 *
+	 * @return The number of nodes.
+	 */
+	@Override
+	public int getNodeCount() {
+		return (int) ((4L * width * width - 1) / 3);
+	}
+
+	/**
+	 * Gets the number of leaves of the tree, counting every shared leaf once per
+	 * place it appears.
+	 *
+	 * @return The number of leaves.
+	 */
+	@Override
+	public int getLeafCount() {
+		return width * width;
+	}
+
+	/**
+	 * Estimates the memory used by the shared nodes.
+	 *
+	 * @return The estimated memory, in bytes.
+	 */
+	@Override
+	public long getMemoryUsage() {
+		return (long) SHARED_NODE_BYTES * uniqueNodes + (long) CHILDREN_ARRAY_BYTES * (uniqueNodes - uniqueLeaves);
+	}
+
+	/**
+	 * A node that may appear in several places of the tree. Two nodes are equal
+	 * when they have the same color and the same child objects.
+	 */
+	private static class SharedNode {
+
+		private int color, id;
+		private SharedNode[] children;
+
+		SharedNode(int theColor, SharedNode[] theChildren) {
+			this.color = theColor;
+			this.children = theChildren;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof SharedNode)) {
+				return false;
+			}
+			SharedNode node = (SharedNode) other;
+			if (color != node.color || (children == null) != (node.children == null)) {
+				return false;
+			}
+			if (children == null) {
+				return true;
+			}
+			for (int i = 0; i < 4; i++) {
+				if (children[i] != node.children[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = color;
+			if (children != null) {
+				for (int i = 0; i < 4; i++) {
+					hash = 31 * hash + children[i].id;
+				}
+			}
+			return hash;
+		}
+	}
+
+	/**
+	 * A read-only view of a shared node at one of the places it appears.
+	 */
+	private static class NodeView extends QTreeNodeView {
+
+		private SharedNode node;
+
+		NodeView(QTreeNode theParent, SharedNode theNode, int x, int y, int size) {
+			super(theParent, x, y, size, theNode.color);
+			this.node = theNode;
+		}
+
+		@Override
+		public boolean isLeaf() {
+			return node.children == null;
+		}
+
+		@Override
+		protected QTreeNode childView(int i) {
+			int half = getSize() / 2;
+			int x = getx() + (i & 1) * half;
+			int y = gety() + (i >> 1) * half;
+			return new NodeView(this, node.children[i], x, y, half);
+		}
+	}
+}
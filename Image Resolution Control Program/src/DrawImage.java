@@ -1,135 +1,161 @@
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
 import javax.swing.JComponent;
-import javax.imageio.ImageIO;
 import java.io.IOException;
 import java.awt.Graphics;
 import java.io.File;
+import java.util.function.IntPredicate;
 
 /* =============================================== */
 /* This class contains methods to display an image */
 /* =============================================== */
 public class DrawImage extends JComponent {
-	private final int SIZE_CANVAS = 512;      // Size of the window where images are displayed
-	private final int SMALLEST_IMAGE = 256;
-	private final int FINAL_RESOLUTION = 9;   // Full image resolution
-	public static QuadrantTree imageTree;    // Quadrant tree storing the image
-	private static BufferedImage im;          // Image container
-	private static int imageType;
-	public static int size;                         // Image size
-	public static int initialResolution;
-	public static QTreeNode startingNode;
+	private static final long serialVersionUID = 1;
+	private volatile QuadTreeRenderer renderer;  // Draws the image shown, null until it is loaded
+	
+	/* A component that displays the image drawn by a renderer, once one is 
+	   loaded                                                               */
+	public DrawImage() {
+	}
 	
 	/* Display the image stored in the fiven file with the specified resolution */
 	public DrawImage(String imagefile, int resolution) {
-		int[][] pixels;
+		this(imagefile, resolution, 0);
+	}
+	
+	/* Display the image stored in the given file with the specified resolution, 
+	   compressing regions whose pixels differ by less than tolerance in every 
+	   channel. A tolerance of 0 keeps every pixel.                          */
+	public DrawImage(String imagefile, int resolution, int tolerance) {
+		load(imagefile, resolution, tolerance, null);
+	}
+	
+	/* Display the image drawn by the given renderer */
+	public DrawImage(QuadTreeRenderer theRenderer) {
+		renderer = theRenderer;
+	}
+	
+	/* Build the quadrant tree of the image stored in the given file and draw it
+	   with the specified resolution. If progress is not null the image is
+	   drawn from coarse to fine resolutions: progress is told each resolution 
+	   once it is drawn and drawing stops when it returns false.             */
+	public void load(String imagefile, int resolution, int tolerance, IntPredicate progress) {
 		try {
-			// Open the image file
-			im = ImageIO.read(new File(imagefile));
-			imageType = im.getType();
-			int width = im.getWidth();
-			int height = im.getHeight();
-			if (width < height) size = width; else size = height;
-			if (size < SMALLEST_IMAGE) {
-				System.out.println("Image must be of size at least "+SMALLEST_IMAGE+"x"+SMALLEST_IMAGE);
-				return;
+			QuadTreeRenderer loaded = QuadTreeRenderer.open(new File(imagefile), tolerance);
+			QuadrantTree imageTree = loaded.getTree();
+			if (imageTree instanceof MappedQuadrantTree) {
+				System.out.println("Quadrant tree opened in " + imageTree.getBuildTime() + " ms");
 			}
-
-			if (size <= SIZE_CANVAS) size = SIZE_CANVAS;
-			else if (size <= 2*SIZE_CANVAS) size = 2*SIZE_CANVAS;
-			else if (size <= 4*SIZE_CANVAS) size = 4*SIZE_CANVAS;
 			else {
-				System.out.println("Image must be of size at most "+(4*SIZE_CANVAS)+"x"+(4*SIZE_CANVAS));
-				return;
+				if (tolerance > 0 && imageTree instanceof TiledPyramid) {
+					System.out.println("Images larger than "+QuadTreeRenderer.LARGEST_IN_MEMORY+"x"
+							+QuadTreeRenderer.LARGEST_IN_MEMORY+" are not compressed");
+				}
+				else if (tolerance > 0) {
+					System.out.println("Compressed tree: " + imageTree.getNodeCount() + " nodes, " 
+							+ imageTree.getMemoryUsage() / 1024 + " KB instead of " 
+							+ imageTree.getFullMemoryUsage() / 1024 + " KB");
+				}
+				System.out.println("Quadrant tree built in " + imageTree.getBuildTime() + " ms");
 			}
-			pixels = new int[size][size];
-	
-			// Store the image pixels in the 2-dimensional array "pixels"
-			for (int xm = 0; xm < size; ++xm)
-				for (int ym = 0; ym < size; ++ym) 
-					if (xm < width && ym < height)
-						pixels[ym][xm] = im.getRGB(xm, ym);
-					else pixels[ym][xm] = 0;
-
-			imageTree = new QuadrantTree(pixels);
-			startingNode = imageTree.getRoot();
-			ListNode<QTreeNode> head = imageTree.getPixels(imageTree.getRoot(),resolution);storePixels(head);			
+			renderer = loaded;
+			draw(resolution,0,0,progress);
 		} catch (IOException e) {
 			System.out.println("Error opening file. " + e.getMessage());
 			System.exit(0);
+		} catch (QTreeException e) {
+			System.out.println(e.getMessage());
 		} catch (Exception e) {
 			System.out.println(e.getMessage());
 			System.exit(0);
 		}				
 	}
 	
-	/* Draw the image with the given resolution with its upper left corner
-	   defined by the node storing the coordinates (x,y)                  */
-	public DrawImage(int resolution, int x, int y) {
-		ListNode<QTreeNode> head;
-		initialResolution = resolution;
-		if (resolution <= FINAL_RESOLUTION) {
-			startingNode = imageTree.getRoot();
-			head = imageTree.getPixels(startingNode,resolution);
+	/* Returns the pixels of image as a size x size square, with the same values
+	   getRGB would return. Images whose raster is an int array are read in 
+	   place; byte rasters are unpacked row by row into one array of the size of
+	   the image, and any other image is read with a single bulk getRGB call.   */
+	public static PixelGrid readPixels(BufferedImage image, int size) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		Raster raster = image.getRaster();
+		int type = image.getType();
+		boolean direct = raster.getParent() == null && raster.getSampleModelTranslateX() == 0
+				&& raster.getSampleModelTranslateY() == 0;
+		
+		if (direct && (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB)) {
+			DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+			int scanline = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+			int alpha = (type == BufferedImage.TYPE_INT_RGB) ? 0xff000000 : 0;
+			return new PixelGrid(buffer.getData(), buffer.getOffset(), scanline, width, height, size, alpha);
 		}
-		else {
-			startingNode = imageTree.findNode(imageTree.getRoot(),resolution - FINAL_RESOLUTION,x,y);
-			if (startingNode == null) {
-				System.out.println("Error. There is no node containing the position ("+x+","+y+")");
-				System.exit(0);
+		
+		int[] rgb = new int[width * height];
+		if (direct && (type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_4BYTE_ABGR)) {
+			byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+			ComponentSampleModel model = (ComponentSampleModel) raster.getSampleModel();
+			int[] bands = model.getBandOffsets();   // red, green, blue and alpha
+			int step = model.getPixelStride();
+			int base = ((DataBufferByte) raster.getDataBuffer()).getOffset();
+			for (int ym = 0; ym < height; ++ym) {
+				int src = base + ym * model.getScanlineStride();
+				int dst = ym * width;
+				for (int xm = 0; xm < width; ++xm, src += step) {
+					int a = (bands.length == 4) ? (data[src + bands[3]] & 0xff) : 0xff;
+					rgb[dst + xm] = (a << 24) | ((data[src + bands[0]] & 0xff) << 16) 
+							| ((data[src + bands[1]] & 0xff) << 8) | (data[src + bands[2]] & 0xff);
+				}
 			}
-			head = imageTree.getPixels(startingNode,FINAL_RESOLUTION);
 		}
-		storePixels(head);
+		else image.getRGB(0, 0, width, height, rgb, 0, width);
+		return new PixelGrid(rgb, 0, width, width, height, size, 0);
 	}
 	
-	/* Draw the image with the given resolution, marking those pixels that have
-       the same color as the color of the pixel at position (x,y)           	*/
-	public DrawImage(int resolution, int x, int y, boolean mark) {
-		ListNode<QTreeNode> headAll;  // List with nodes of the same color as pixel at position (x,y)
-		Duple headColor;
-		initialResolution = resolution;
-			
-		// Find the node at position (x,y)
-		QTreeNode colorNode;
-		if (resolution > FINAL_RESOLUTION) resolution = FINAL_RESOLUTION;
-		colorNode = imageTree.findNode(startingNode,resolution,x,y);
-		if (colorNode == null) return;
-		int color = colorNode.getColor();
-		
-		// Find the nodes with the same color as the node as position (x,y)
-		headColor = imageTree.findMatching(startingNode,color,resolution);
-		headAll = imageTree.getPixels(startingNode,resolution);	
-
-		// Store the image pixels
-		storePixels(headAll);
-		Gui.markPixels(headColor,resolution);
+	/* Draw the image with the given resolution with its upper left corner 
+	   defined by the node storing the coordinates (x,y). Progress is used as 
+	   in load.                                                             */
+	public void draw(int resolution, int x, int y, IntPredicate progress) {
+		try {
+			renderer.draw(resolution,x,y,progress);
+		} catch (QTreeException e) {
+			System.out.println("Error. " + e.getMessage());
+			System.exit(0);
+		}
+	}
+	
+	/* Draw the square viewport of the given size whose upper left corner is at
+	   (x,y) of the image, which need not be the corner of a quadrant        */
+	public void drawViewport(int x, int y, int viewSize) {
+		renderer.drawViewport(x,y,viewSize);
+	}
+	
+	/* Draw the image with the given resolution, marking those pixels that have 
+	   the same color as the color of the pixel at position (x,y). The marked 
+	   pixels are reported to progress as one more step at the final 
+	   resolution.                                                          */
+	public void drawMatching(int resolution, int x, int y, IntPredicate progress) {
+		Duple headColor = renderer.drawMatching(resolution,x,y,progress);
+		if (headColor == null) return;
 		System.out.println("Number of pixels with the same color as pixel ("+x+","+y+"): "+headColor.getCount());
 	}
 	
-	/* Draw the image on the screen */
+	/* Draw the image on the screen. While the renderer draws, its canvas is 
+	   shown as it is being drawn on.                                        */
 	public void paint(Graphics g) {
-		int[] pix = new int[SIZE_CANVAS*SIZE_CANVAS];
-		int[][] matrixOfPixels = Gui.getPixelsMatrix();
-		int i = 0;
-		for (int xm = 0; xm < SIZE_CANVAS; ++xm)
-			for (int ym = 0; ym < SIZE_CANVAS; ++ym)
-				pix[i++] = matrixOfPixels[xm][ym];
-		im = new BufferedImage(SIZE_CANVAS,SIZE_CANVAS,imageType);
-		im.setRGB(0,0,SIZE_CANVAS,SIZE_CANVAS,pix,0,SIZE_CANVAS);	
-		g.drawImage(im,0,0,null);
+		QuadTreeRenderer current = renderer;
+		if (current != null) g.drawImage(current.getCanvas(),0,0,null);
 	}
 	
-	public int getImageSize() {
-		return size;
+	/* Returns the renderer of the image, or null if it is not loaded yet */
+	public QuadTreeRenderer getRenderer() {
+		return renderer;
 	}
 	
-	/* Save the pixels stored in the singly linked list referenced by head,
-	   so they can be displayed in the screen.                              */
-	private void storePixels(ListNode<QTreeNode> head) {
-		while (head != null) {
-			Gui.storePixel(head.getData());
-			head = head.getNext();
-		}
+	public int getImageSize() {
+		return (renderer == null) ? 0 : renderer.getImageSize();
 	}
 }
-
@@ -4,7 +4,6 @@ import java.awt.Container;
 import java.awt.Graphics;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.awt.image.BufferedImage;
 import javax.swing.JButton;
 import javax.swing.JFrame;
 import javax.swing.JPanel;
@@ -16,6 +15,12 @@ import java.io.IOException;
 import java.io.File;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseEvent;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+import javax.swing.SwingWorker;
 
 
 /* Create the graphical user interface */
@@ -34,28 +39,36 @@ public class Gui extends JFrame implements ActionListener, MouseListener {
 	private final int MENU_HEIGHT = 74; 	// Height of buttons toolbar
 	private final int BORDER = 9; 		// Border width
 	private final int INITIAL_RESOLUTION = 6;
-	private static final int FINAL_RESOLUTION = 9;   // Full image resolution
-	private final int MAX_RESOLUTION = 11;
 	private final int MIN_RESOLUTION = 1;
-	private static final int CANVAS_SIZE = 512;     // Size of window where images are displayed
 
 	private int windowWidth; 		// Dimensions of  GUI window
 	private int windowHeight;
 
 	private int xcoord, ycoord;          	// Coordinates entered in the graphical user interface
-	private static int[][] pixelsMatrix; 	// Pixels of image to draw
 	private int resolution = INITIAL_RESOLUTION;
 	private DrawImage dim;
-	private static int imageSize;  		// Size of image being displayed
+	private ExecutorService worker = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "Image worker");
+		thread.setDaemon(true);
+		return thread;
+	});				// Builds the tree and stores pixels, one request at a time
+	private SwingWorker<Void, Integer> task;	// Latest request given to worker
 
 	/* ============================================== */
 	public Gui(int width, int height, String fileName) {
 	/* ============================================== */
+		this(width, height, fileName, 0);
+	}
+
+	/* Display the image in fileName; regions whose pixels differ by less than 
+	   tolerance in every channel are compressed into single leaves          */
+	/* ============================================================== */
+	public Gui(int width, int height, String fileName, int tolerance) {
+	/* ============================================================== */
 
 		try {
 			windowWidth = width;
 			windowHeight = height;
-			pixelsMatrix = new int[CANVAS_SIZE][CANVAS_SIZE];
 
 			panel = new Board();
 			contentPane = getContentPane();
@@ -101,21 +114,50 @@ public class Gui extends JFrame implements ActionListener, MouseListener {
 			contentPane.setFocusable(true);
 			contentPane.requestFocusInWindow();
 
-			System.out.println("Initializing ...");
-			Thread.sleep(2000);
-
 			resolution = INITIAL_RESOLUTION;
 			
-			dim = new DrawImage(fileName, resolution);
+			dim = new DrawImage();
 			contentPane.add(dim);
 			dim.addMouseListener(this);
 			setVisible(true);
-			System.out.println("Ready.");
+
+			/* Build the tree off the event thread; the image is shown as soon as
+			   its first resolution is stored */
+			System.out.println("Initializing ...");
+			final int initial = resolution;
+			render(progress -> {
+				dim.load(fileName, initial, tolerance, progress);
+				System.out.println("Ready.");
+			});
 		} catch (Exception e) {
 			System.out.println("Error starting program: " + e.getMessage());
 		}
 	}
 
+	/* Run drawing on the worker thread, cancelling the drawing still running or
+	   waiting, if any. Drawing reports every resolution it stores through its
+	   progress argument, and the canvas is repainted each time so the image is
+	   refined while the deeper levels are stored.                            */
+	private void render(Consumer<IntPredicate> drawing) {
+		if (task != null) task.cancel(false);
+		task = new SwingWorker<Void, Integer>() {
+			protected Void doInBackground() {
+				if (!isCancelled())
+					drawing.accept(level -> {
+						if (isCancelled()) return false;
+						publish(level);
+						return true;
+					});
+				return null;
+			}
+
+			protected void process(List<Integer> levels) {
+				if (!isCancelled()) dim.repaint();
+			}
+		};
+		worker.execute(task);
+	}
+
 	/* Returns true if the given color are similar; returns false otherwise */
 	public static boolean similarColor(int color1, int color2) {
 		int simred = 0xf << 16;
@@ -128,10 +170,6 @@ public class Gui extends JFrame implements ActionListener, MouseListener {
 	}
 	
 	
-	public static int[][] getPixelsMatrix() {
-		return pixelsMatrix;
-	}
-	
 	/* Computes the average color of the square region of the image 
 	   "pixels" with upper left corner at (x,y) and size given by 
 	   the last parameter.                                   */
@@ -146,149 +184,16 @@ public class Gui extends JFrame implements ActionListener, MouseListener {
 				blue = blue + (pixels[j][i] & 0xFF);
 			}
 
-		// Average the components and convert them back to a color
-		int n = size * size;		
-		red = red / n;
-		green = green / n;
-		blue = blue / n;
+		// Average the components and convert them back to a color. The sums wrap
+		// around past 2^32, so they are read as unsigned: this is exact up to
+		// 4096x4096 pixels and matches every build mode of QuadrantTree beyond
+		long n = (long) size * size;
+		red = (int) ((red & 0xFFFFFFFFL) / n);
+		green = (int) ((green & 0xFFFFFFFFL) / n);
+		blue = (int) ((blue & 0xFFFFFFFFL) / n);
 		return ((red & 0xFF) << 16) + ((green & 0xFF) << 8) + (blue & 0xFF); 
 	}
 	
-	/* Stores the pixels represented by r in matrixPixels so the image can be     
-	   displayed */
-	public static void storePixel (QTreeNode r) {
-		int x = r.getx();
-		int y = r.gety();
-		int size = 0, i, j;
-		int deltax = 0, deltay = 0, scale = 1;
-		QTreeNode startingNode = DrawImage.startingNode;
-		QTreeNode root = DrawImage.imageTree.getRoot();
-		imageSize = DrawImage.size;
-		try {
-			if (imageSize == CANVAS_SIZE) {
-		    		size = r.getSize();
-		    		for (i = x; i < x + size; ++i)
-		    			for (j = y; j < y + size; ++j)
-		    				pixelsMatrix[j][i] = r.getColor();	
-				return;
-			}
-		
-			deltax = startingNode.getx();
-			deltay = startingNode.gety();
-			x = x - deltax; // Translate the coordinates of the node with respect
-						// to the starting node
-			y = y - deltay;
-							
-			if (imageSize == 2*CANVAS_SIZE) {
-				if (startingNode != root) 
-					pixelsMatrix[y][x] = r.getColor();			
-				else {
-					scale = 2;
-					x = x/scale;
-					y = y/scale;
-					size = r.getSize()/scale;
-		    			for (i = x; i < x + size; ++i)
-		    				for (j = y; j < y + size; ++j)
-		    					pixelsMatrix[j][i] = r.getColor();								
-				}
-			}
-			else {
-				if (getLevel(startingNode) == 2) 
-					pixelsMatrix[y][x] = r.getColor();
-				else if (startingNode == root)
-					scale = 4;
-				else if (startingNode.getParent() == root)
-					scale = 2;
-				x = x/scale;
-				y = y/scale;
-				size = r.getSize()/scale;
-				//pixelsMatrix[y/scale][x/scale] = r.getColor();
-		    		for (i = x; i < x + size; ++i)
-		    			for (j = y; j < y + size; ++j)
-		    				pixelsMatrix[j][i] = r.getColor();			
-			}
-
-		} catch (Exception e) {
-			System.out.println(e.getMessage());
-			System.exit(0);
-		}
-	}
-	
-	/* Mark the pixels in the list stored in head */
-	public static void markPixels(Duple head, int resolution) {
-		QTreeNode r;
-		int deltax = 0, deltay = 0, scale = 1;
-		int x, y, size = 0;
-		QTreeNode startingNode = DrawImage.startingNode;
-		QTreeNode root = DrawImage.imageTree.getRoot();
-		imageSize = DrawImage.size;
-		
-		if (DrawImage.size == 2*CANVAS_SIZE) scale = 2;
-		else if (DrawImage.size == 4*CANVAS_SIZE) scale = 4;
-		ListNode<QTreeNode> p = head.getFront();
-		while (p != null) {
-			r = (QTreeNode)p.getData();
-			x = r.getx();
-			y = r.gety();
-			if (imageSize == CANVAS_SIZE) {
-		    		size = r.getSize();
-		    		for (int i = x; i < x + size; ++i)
-		    			for (int j = y; j < y + size; ++j)
-		    				pixelsMatrix[j][i] = 0xff0000;	
-			}	
-			else {
-				deltax = startingNode.getx();
-				deltay = startingNode.gety();
-				x = x - deltax; 	// Translate the coordinates of the node with respect
-							// to the starting node
-				y = y - deltay;
-							
-				if (imageSize == 2*CANVAS_SIZE) {
-					if (startingNode != root) {
-						pixelsMatrix[y][x] = 0xff0000;	
-					}		
-					else {
-						scale = 2;
-						x = x/scale;
-						y = y/scale;
-						size = r.getSize()/scale;
-						for (int i = x; i < x + size; ++i)
-							for (int j = y; j < y + size; ++j)
-								pixelsMatrix[j][i] = 0xff0000;								
-					}
-				}
-				else {
-					if (getLevel(startingNode) == 2) 
-						pixelsMatrix[y][x] = 0xff0000;
-					else if (startingNode == root)
-						scale = 4;
-					else if (startingNode.getParent() == root)
-						scale = 2;
-					x = x/scale;
-					y = y/scale;
-					size = r.getSize()/scale;
-					//pixelsMatrix[y/scale][x/scale] = r.getColor();
-		    			for (int i = x; i < x + size; ++i)
-		    				for (int j = y; j < y + size; ++j)
-		    					pixelsMatrix[j][i] = 0xff0000;			
-				}
-
-			}
-			p = p.getNext();			
-		}
-	}
-	
-	/* Compute the level of the node r */
-	/* ========================================*/
-	private static int getLevel(QTreeNode r) {
-	/* ========================================*/		
-		int level = 0;
-		while (r.getParent() != null) {
-			r = r.getParent();
-			++level;
-		}
-		return level;
-	}
 	/* ==================== */
 	public int displayWidth() {
 	/* ==================== */
@@ -322,65 +227,55 @@ public class Gui extends JFrame implements ActionListener, MouseListener {
 	{
 		int scale = 1, deltax = 0, deltay = 0;
 		String s = (String) e.getActionCommand();
-		int imgSize = DrawImage.size;
+		QuadTreeRenderer renderer = dim.getRenderer();
+		
+		if (renderer == null && !s.equals("Exit")) {
+			System.out.println("Still loading the image");
+			return;
+		}
+		// The canvas shows the subtree of the starting node, scaled down to fit
+		int imgSize = 0;
+		if (renderer != null) {
+			QTreeNode startingNode = renderer.getStartingNode();
+			imgSize = renderer.getImageSize();
+			scale = Math.max(1, startingNode.getSize() / QuadTreeRenderer.CANVAS_SIZE);
+			deltax = startingNode.getx();
+			deltay = startingNode.gety();
+		}
 		
 		if (s.equals("Find")) {
-			if ((imgSize > CANVAS_SIZE) && (resolution > FINAL_RESOLUTION)) {
-				deltax = DrawImage.startingNode.getx();
-				deltay = DrawImage.startingNode.gety();				
-			}
-			if ((imgSize == 2*CANVAS_SIZE) && (resolution <= FINAL_RESOLUTION)) scale = 2;
-			else if (imgSize == 4*CANVAS_SIZE) 
-				if (resolution <= FINAL_RESOLUTION) scale = 4;
-				else if (resolution == (FINAL_RESOLUTION + 1)) scale = 2;
-
 			xcoord = (xcoord * scale) + deltax;
 			ycoord = (ycoord * scale) + deltay;
 			
-			contentPane.remove(dim);			
-			dim = new DrawImage(resolution,xcoord,ycoord,true);
-			contentPane.add(dim);
-			dim.addMouseListener(this);			
-			setVisible(true);				
+			final int res = resolution, x = xcoord, y = ycoord;
+			render(progress -> dim.drawMatching(res,x,y,progress));
 		} else if (s.equals("++Res")) {
 
-			if (((imgSize <= CANVAS_SIZE) && (resolution < FINAL_RESOLUTION)) ||
-			    ((imgSize == 2*CANVAS_SIZE) && (resolution < FINAL_RESOLUTION + 1)) ||
-				((imgSize == 4*CANVAS_SIZE) && (resolution < MAX_RESOLUTION))) {
+			if (resolution < renderer.getMaxResolution()) {
 				++resolution;	
-				if (imgSize == 2*CANVAS_SIZE) scale = 2;
-				else if (imgSize == 4*CANVAS_SIZE) {
-					if (resolution == FINAL_RESOLUTION + 1) scale = 4;
-					else {
-						deltax = DrawImage.startingNode.getx();
-						deltay = DrawImage.startingNode.gety();
-						scale = 2;
-					}
-				}
 				xcoord = xcoord * scale + deltax;
 				ycoord = ycoord * scale + deltay;
 				if (xcoord >= imgSize || ycoord >= imgSize) {
 					xcoord = 0;
 					ycoord = 0;
 				}
-				contentPane.remove(dim);							
-				dim = new DrawImage(resolution,xcoord,ycoord);
-				contentPane.add(dim);
-				dim.addMouseListener(this);				
-				setVisible(true);
+				final int res = resolution, x = xcoord, y = ycoord;
+				render(progress -> dim.draw(res,x,y,progress));
 			}
 		} else if (s.equals("--Res")) {
 				if (resolution >= MIN_RESOLUTION) {
-					if ((imgSize == 4*CANVAS_SIZE) && (resolution == MAX_RESOLUTION)) --resolution;
+					if ((imgSize == 4*QuadTreeRenderer.CANVAS_SIZE) && (resolution == renderer.getMaxResolution())) --resolution;
 					--resolution;
 					if (xcoord == 0 && ycoord == 0) xcoord = ycoord = imgSize / 2;					
-					contentPane.remove(dim);																
-					dim = new DrawImage(resolution,xcoord,ycoord);
-					contentPane.add(dim);
-					dim.addMouseListener(this);					
-					setVisible(true);	
+					final int res = resolution, x = xcoord, y = ycoord;
+					render(progress -> dim.draw(res,x,y,progress));
 				}					
 		}else if (s.equals("Exit")) {
+			if (renderer != null) {
+				RenderCache cache = renderer.getCache();
+				System.out.println("Render cache: " + cache.getHits() + " hits, " + cache.getMisses() + " misses, " 
+						+ cache.getEvictions() + " evictions");
+			}
 			dispose();
 			System.exit(0);
 		}
@@ -411,7 +306,8 @@ public class Gui extends JFrame implements ActionListener, MouseListener {
 		Gui window;
 		if (args.length == 1) 
 			window = new Gui(530, 590, args[0]); // Set up drawing environment;
-		else if (args.length == 2) ;
+		else if (args.length == 2) 
+			window = new Gui(530, 590, args[0], Integer.parseInt(args[1])); // Compress uniform regions
 	}		
 }
 
@@ -0,0 +1,338 @@
+import java.nio.IntBuffer;
+
+/**
+ * A quadrant tree stored without any pointers. Because QuadrantTree always
+ * builds a full tree over a power-of-two square, the nodes can be laid out
+ * breadth first in a single color array: the root is at index 0, the children
+ * of the node at index i are at 4i + 1 to 4i + 4 and its parent is at
+ * (i - 1) / 4. The nodes of level k start at index (4^k - 1) / 3.
+ *
+ * Within a level the nodes appear in the same order as they are listed by
+ * getPixels, so the nodes of any subtree at a given level form one contiguous
+ * slice of the color array (see getLevelColors); QuadTreeRenderer draws the
+ * levels of an ImplicitQuadrantTree from these slices.
+ *
+ * The node at a given level containing a pixel is found in constant time: its
+ * position within the level is the Morton code of the pixel's quadrant (see
+ * Morton), so findNode needs no descent.
+ *
+ * The tree is read through QTreeNode views created on demand, so the queries
+ * of QuadrantTree, DrawImage and QuadTreeRenderer work on it unchanged. The tree
+ * is identical to the one built by new QuadrantTree(pixels).
+ *
+ * @author adamm
+ */
+public class ImplicitQuadrantTree extends QuadrantTree {
+
+	private int[] colors;
+	private int levels;  // Level of the leaves
+	private int width;   // Size of the root
+	private int[][] sums; // Scratch channel sums, one row per level, used while building
+
+	private static final int SCAN_RUN = 4096; // Colors scanned by findMatching per batch
+
+	/**
+	 * Constructs an ImplicitQuadrantTree from the given pixels array.
+	 *
+	 * @param thePixels The 2D array representing pixel values.
+	 */
+	public ImplicitQuadrantTree(int[][] thePixels) {
+		long start = System.nanoTime();
+		this.width = thePixels.length;
+		this.levels = 0;
+		while ((1 << levels) < width) {
+			levels++;
+		}
+		this.colors = new int[levelStart(levels + 1)];
+		this.sums = new int[levels + 2][3];
+		fill(thePixels, 0, 0, 0, 0, width);
+		this.sums = null;
+		setRoot(new NodeView(null, 0, 0, 0, width, 0));
+		setBuildTime(System.nanoTime() - start);
+	}
+
+	/**
+	 * Recursively stores the colors of the subtree of the square region with
+	 * upper left corner at (x,y) and adds its channel sums to those of its
+	 * parent.
+	 *
+	 * @param pixels The 2D array representing pixel values.
+	 * @param index  The index of the current node.
+	 * @param level  The level of the current node.
+	 * @param x      The x-coordinate of the current node.
+	 * @param y      The y-coordinate of the current node.
+	 * @param size   The size of the current node.
+	 */
+	private void fill(int[][] pixels, int index, int level, int x, int y, int size) {
+		int[] parentSums = sums[level];
+		if (size == 1) {
+			colors[index] = pixels[x][y];
+			int pixel = pixels[y][x];
+			parentSums[0] += (pixel >> 16) & 0xFF;
+			parentSums[1] += (pixel >> 8) & 0xFF;
+			parentSums[2] += pixel & 0xFF;
+			return;
+		}
+
+		int[] own = sums[level + 1];
+		own[0] = own[1] = own[2] = 0;
+		int child = firstChild(index);
+		int half = size / 2;
+		fill(pixels, child, level + 1, x, y, half);
+		fill(pixels, child + 1, level + 1, x + half, y, half);
+		fill(pixels, child + 2, level + 1, x, y + half, half);
+		fill(pixels, child + 3, level + 1, x + half, y + half, half);
+
+		int r = own[0], g = own[1], b = own[2];
+		colors[index] = BottomUpBuilder.averageColor(r, g, b, size);
+		parentSums[0] += r;
+		parentSums[1] += g;
+		parentSums[2] += b;
+	}
+
+	/**
+	 * Gets the index of the first node of the given level.
+	 *
+	 * @param level The level.
+	 * @return The index of the first node of the level.
+	 */
+	public static int levelStart(int level) {
+		return (int) ((((long) 1 << (2 * level)) - 1) / 3);
+	}
+
+	/**
+	 * Gets the index of the first child of the node at the given index. The
+	 * other three children follow it.
+	 *
+	 * @param index The index of a node.
+	 * @return The index of its first child.
+	 */
+	public static int firstChild(int index) {
+		return 4 * index + 1;
+	}
+
+	/**
+	 * Gets the index of the parent of the node at the given index.
+	 *
+	 * @param index The index of a node other than the root.
+	 * @return The index of its parent.
+	 */
+	public static int parent(int index) {
+		return (index - 1) / 4;
+	}
+
+	/**
+	 * Gets the level of the leaves of this quadrant tree.
+	 *
+	 * @return The deepest level of the tree.
+	 */
+	public int getLeafLevel() {
+		return this.levels;
+	}
+
+	/**
+	 * Gets the color of the node at the given index.
+	 *
+	 * @param index The index of a node.
+	 * @return The color of the node.
+	 */
+	public int getColor(int index) {
+		return this.colors[index];
+	}
+
+	/**
+	 * Gets the colors of all nodes at the specified level, in the order in which
+	 * getPixels lists them. No colors are copied.
+	 *
+	 * @param theLevel The level of the nodes.
+	 * @return A read-only buffer over the colors of the level.
+	 */
+	public IntBuffer getLevelColors(int theLevel) {
+		return getLevelColors(getRoot(), theLevel);
+	}
+
+	/**
+	 * Gets the colors of the nodes of the subtree rooted at r that are
+	 * theLevel levels below r, in the order in which getPixels lists them. If the
+	 * leaves are reached first, the colors of the leaves are returned. No colors
+	 * are copied.
+	 *
+	 * @param r        A node of this tree.
+	 * @param theLevel The number of levels below r.
+	 * @return A read-only buffer over the colors of the nodes.
+	 */
+	public IntBuffer getLevelColors(QTreeNode r, int theLevel) {
+		if (!(r instanceof NodeView)) {
+			throw new QTreeException("Node is not part of this tree");
+		}
+		NodeView view = (NodeView) r;
+		int depth = Math.min(theLevel, levels - view.level);
+		IntBuffer slice = IntBuffer.wrap(colors, firstDescendant(view.index, depth), 1 << (2 * depth)).slice();
+		return slice.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Gets the index of the first descendant of a node that is a given number of
+	 * levels below it.
+	 *
+	 * @param index The index of the node.
+	 * @param depth The number of levels below the node.
+	 * @return The index of the descendant.
+	 */
+	private static int firstDescendant(int index, int depth) {
+		// The first descendant d levels below is reached by taking the first child
+		// d times
+		for (int d = 0; d < depth; d++) {
+			index = firstChild(index);
+		}
+		return index;
+	}
+
+	/**
+	 * Counts the nodes in the quadrant tree with a color similar to the specified
+	 * color and at the specified level. The nodes of the level below r are one
+	 * slice of the color array, so they are tested with a single batch scan
+	 * unless color bounds can prune the search.
+	 *
+	 * @param r        The root node of the subtree to search.
+	 * @param theColor The color to match.
+	 * @param theLevel The level at which to search for nodes.
+	 * @return The number of matching nodes.
+	 */
+	@Override
+	public int countMatching(QTreeNode r, int theColor, int theLevel) {
+		if (!(r instanceof NodeView) || theLevel < 0 || getColorBounds() != null) {
+			return super.countMatching(r, theColor, theLevel);
+		}
+		NodeView view = (NodeView) r;
+		int depth = Math.min(theLevel, levels - view.level);
+		int first = firstDescendant(view.index, depth);
+		return ColorKernels.countSimilar(colors, first, first + (1 << (2 * depth)), theColor);
+	}
+
+	/**
+	 * Finds the nodes in the quadrant tree with a color similar to the specified
+	 * color and at the specified level. Like in countMatching, the nodes of the
+	 * level below r are scanned as one slice of the color array, in batches of
+	 * ColorKernels.findSimilar, unless color bounds can prune the search. The
+	 * nodes are listed in the same order as by QuadrantTree.findMatching.
+	 *
+	 * @param r        The root node of the subtree to search.
+	 * @param theColor The color to match.
+	 * @param theLevel The level at which to search for nodes.
+	 * @return A Duple containing a list of matching nodes and the count of such
+	 *         nodes.
+	 */
+	@Override
+	public Duple findMatching(QTreeNode r, int theColor, int theLevel) {
+		if (!(r instanceof NodeView) || theLevel < 0 || getColorBounds() != null) {
+			return super.findMatching(r, theColor, theLevel);
+		}
+		NodeView view = (NodeView) r;
+		int depth = Math.min(theLevel, levels - view.level);
+		int first = firstDescendant(view.index, depth);
+		int end = first + (1 << (2 * depth));
+		int size = view.getSize() >> depth;
+		int[] indices = new int[Math.min(SCAN_RUN, end - first)];
+		NodeList matching = new NodeList();
+		for (int from = first; from < end; from += SCAN_RUN) {
+			int found = ColorKernels.findSimilar(colors, from, Math.min(from + SCAN_RUN, end), theColor, indices);
+			for (int i = 0; i < found; i++) {
+				// The position within the level below r is the Morton code of the node
+				int code = indices[i] - first;
+				matching.add(new NodeView(null, indices[i], view.getx() + Morton.decodeX(code) * size,
+						view.gety() + Morton.decodeY(code) * size, size, view.level + depth));
+			}
+		}
+		return matching;
+	}
+
+	/**
+	 * Finds a node in the subtree rooted at the specified node and at the specified
+	 * level. The node is computed directly from the Morton code of the point.
+	 *
+	 * @param r        The root node of the subtree to search.
+	 * @param theLevel The level at which to search for the node.
+	 * @param x        The x-coordinate of the point.
+	 * @param y        The y-coordinate of the point.
+	 * @return The node representing the quadrant containing the point, or null if
+	 *         not found.
+	 */
+	@Override
+	public QTreeNode findNode(QTreeNode r, int theLevel, int x, int y) {
+		if (!r.contains(x, y)) {
+			return null;
+		}
+		if (theLevel == 0) {
+			return r;
+		}
+		if (!(r instanceof NodeView) || theLevel < 0 || ((NodeView) r).level + theLevel > levels) {
+			return super.findNode(r, theLevel, x, y);
+		}
+		return getNode(((NodeView) r).level + theLevel, x, y);
+	}
+
+	/**
+	 * Gets the node at the specified level whose quadrant contains the point
+	 * (x,y).
+	 *
+	 * @param theLevel The level of the node, counted from the root.
+	 * @param x        The x-coordinate of the point.
+	 * @param y        The y-coordinate of the point.
+	 * @return The node containing the point, or null if the point is outside the
+	 *         image.
+	 */
+	public QTreeNode getNode(int theLevel, int x, int y) {
+		if (theLevel < 0 || theLevel > levels || x < 0 || y < 0 || x >= width || y >= width) {
+			return null;
+		}
+		if (theLevel == 0) {
+			return getRoot();
+		}
+		int shift = levels - theLevel;
+		int cx = x >> shift;
+		int cy = y >> shift;
+		int index = levelStart(theLevel) + (int) Morton.encode(cx, cy);
+		return new NodeView(null, index, cx << shift, cy << shift, 1 << shift, theLevel);
+	}
+
+	/**
+	 * A read-only view of the node at a given index.
+	 */
+	private class NodeView extends QTreeNodeView {
+
+		private int index, level;
+
+		NodeView(QTreeNode theParent, int theIndex, int x, int y, int size, int theLevel) {
+			super(theParent, x, y, size, colors[theIndex]);
+			this.index = theIndex;
+			this.level = theLevel;
+		}
+
+		@Override
+		public boolean isLeaf() {
+			return level == levels;
+		}
+
+		@Override
+		protected QTreeNode childView(int i) {
+			int half = getSize() / 2;
+			int x = getx() + (i & 1) * half;
+			int y = gety() + (i >> 1) * half;
+			return new NodeView(this, firstChild(index) + i, x, y, half, level + 1);
+		}
+
+		@Override
+		protected QTreeNode parentView() {
+			if (index == 0) {
+				return null;
+			}
+			int p = parent(index);
+			if (p == 0) {
+				return getRoot();
+			}
+			int size = 2 * getSize();
+			return new NodeView(null, p, getx() / size * size, gety() / size * size, size, level - 1);
+		}
+	}
+}
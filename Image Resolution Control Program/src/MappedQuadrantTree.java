@@ -0,0 +1,264 @@
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import javax.imageio.ImageIO;
+
+/**
+ * A quadrant tree read from a .qtree file mapped into memory. Nodes are only
+ * read when a view of them is created, so opening a file takes constant time
+ * whatever the size of the tree.
+ *
+ * A .qtree file stores, after a header, the colors of the nodes in breadth-first
+ * order, the order of ImplicitQuadrantTree. A full tree needs nothing else. A
+ * compressed tree, whose leaves are not all at the deepest level, also stores
+ * one bit per node, set for the internal nodes, followed by the number of bits
+ * set before every 64-bit word. The children of the node at position p then
+ * start at position 1 + 4 * (number of internal nodes before p).
+ *
+ * The tree is read through QTreeNode views, so getPixels, findNode,
+ * findMatching, DrawImage and QuadTreeRenderer work on it unchanged, and the
+ * tree is identical to the one that was written.
+ *
+ * @author adamm
+ */
+public class MappedQuadrantTree extends QuadrantTree {
+
+	private static final int MAGIC = 0x51545245;  // "QTRE"
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 24;   // magic, version, flags, size, levels, node count
+	private static final int STRUCTURE = 1;       // Flag set when the structure bits are stored
+
+	private int width, levels, nodes, leaves;
+	private IntBuffer colors;
+	private LongBuffer bits;   // Set for internal nodes; null for a full tree
+	private IntBuffer ranks;   // Bits set before every word of bits
+	private long fileBytes;
+
+	/**
+	 * Opens the tree stored in the given .qtree file. The header is checked
+	 * against the size of the file, so a truncated or edited file is rejected
+	 * here rather than when its nodes are read.
+	 *
+	 * @param file The file.
+	 * @throws IOException if the file cannot be read, is not a .qtree file or
+	 *                     has an inconsistent header.
+	 */
+	public MappedQuadrantTree(File file) throws IOException {
+		long start = System.nanoTime();
+		MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			fileBytes = channel.size();
+			if (fileBytes < HEADER_BYTES || fileBytes > Integer.MAX_VALUE) {
+				throw new IOException("Not a quadrant tree file: " + file);
+			}
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileBytes);
+		}
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			throw new IOException("Not a quadrant tree file: " + file);
+		}
+		int flags = buffer.getInt(8);
+		this.width = buffer.getInt(12);
+		this.levels = buffer.getInt(16);
+		this.nodes = buffer.getInt(20);
+		if ((flags & ~STRUCTURE) != 0 || width < 1 || Integer.bitCount(width) != 1
+				|| levels != Integer.numberOfTrailingZeros(width) || nodes < 1) {
+			throw new IOException("Invalid quadrant tree header: " + file);
+		}
+		int words = (flags & STRUCTURE) != 0 ? (nodes + 63) / 64 : 0;
+		if (fileBytes != HEADER_BYTES + 12L * words + 4L * nodes) {
+			throw new IOException("Truncated quadrant tree file: " + file);
+		}
+
+		int position = HEADER_BYTES;
+		if (words > 0) {
+			this.bits = buffer.position(position).slice().asLongBuffer().limit(words);
+			position += 8 * words;
+			this.ranks = buffer.position(position).slice().asIntBuffer().limit(words);
+			position += 4 * words;
+			// Every internal node has four children after the root
+			if ((nodes - 1) % 4 != 0 || 4L * rank(nodes) + 1 != nodes) {
+				throw new IOException("Invalid quadrant tree structure: " + file);
+			}
+			this.leaves = nodes - rank(nodes);
+		} else {
+			if (levels > 15 || nodes != ImplicitQuadrantTree.levelStart(levels + 1)) {
+				throw new IOException("Invalid quadrant tree header: " + file);
+			}
+			this.leaves = 1 << (2 * levels);
+		}
+		this.colors = buffer.position(position).slice().asIntBuffer().limit(nodes);
+		setRoot(new NodeView(null, 0, 0, 0, width, 0));
+		setBuildTime(System.nanoTime() - start);
+	}
+
+	/**
+	 * Writes the given tree to a .qtree file.
+	 *
+	 * @param tree The tree.
+	 * @param file The file.
+	 * @throws IOException if the file cannot be written.
+	 */
+	public static void write(QuadrantTree tree, File file) throws IOException {
+		QTreeNode root = tree.getRoot();
+		int width = root.getSize();
+		int levels = Integer.numberOfTrailingZeros(width);
+
+		// List the nodes breadth first, remembering which ones are internal
+		int count = tree.getNodeCount();
+		int[] colors = new int[count];
+		long[] bits = new long[(count + 63) / 64];
+		boolean full = true;
+		ArrayDeque<QTreeNode> queue = new ArrayDeque<>();
+		queue.add(root);
+		for (int p = 0; p < count; p++) {
+			QTreeNode r = queue.remove();
+			colors[p] = r.getColor();
+			if (r.isLeaf()) {
+				if (r.getSize() > 1) {
+					full = false;
+				}
+			} else {
+				bits[p >> 6] |= 1L << (p & 63);
+				for (int i = 0; i < 4; i++) {
+					queue.add(r.getChild(i));
+				}
+			}
+		}
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(full ? 0 : STRUCTURE);
+			out.writeInt(width);
+			out.writeInt(levels);
+			out.writeInt(count);
+			if (!full) {
+				for (long word : bits) {
+					out.writeLong(word);
+				}
+				int rank = 0;
+				for (long word : bits) {
+					out.writeInt(rank);
+					rank += Long.bitCount(word);
+				}
+			}
+			for (int color : colors) {
+				out.writeInt(color);
+			}
+		}
+	}
+
+	/**
+	 * Counts the internal nodes before the given position.
+	 *
+	 * @param p A position in breadth-first order.
+	 * @return The number of internal nodes before p.
+	 */
+	private int rank(int p) {
+		int word = p >> 6;
+		if (word == ranks.limit()) {
+			return ranks.get(word - 1) + Long.bitCount(bits.get(word - 1));
+		}
+		return ranks.get(word) + Long.bitCount(bits.get(word) & ((1L << (p & 63)) - 1));
+	}
+
+	/**
+	 * Gets the number of nodes of the tree.
+	 *
+	 * @return The number of nodes.
+	 */
+	@Override
+	public int getNodeCount() {
+		return this.nodes;
+	}
+
+	/**
+	 * Gets the number of leaves of the tree.
+	 *
+	 * @return The number of leaves.
+	 */
+	@Override
+	public int getLeafCount() {
+		return this.leaves;
+	}
+
+	/**
+	 * Gets the size of the mapped file. The file is mapped, not copied, so the
+	 * operating system only loads the pages that are read.
+	 *
+	 * @return The size of the file, in bytes.
+	 */
+	@Override
+	public long getMemoryUsage() {
+		return this.fileBytes;
+	}
+
+	/**
+	 * Converts an image into a .qtree file with the same name, so that Gui can
+	 * open it without decoding the image and building its tree.
+	 *
+	 * @param args The image file, and optionally the tolerance used to compress
+	 *             uniform regions.
+	 * @throws IOException if the image cannot be read or the file written.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.out.println("Usage: java MappedQuadrantTree image [tolerance]");
+			return;
+		}
+		File image = new File(args[0]);
+		int tolerance = (args.length > 1) ? Integer.parseInt(args[1]) : 0;
+		BufferedImage im = ImageIO.read(image);
+		// Padded like QuadTreeRenderer.open, so Gui shows the file like the image
+		int size = QuadTreeRenderer.CANVAS_SIZE;
+		while (size < Math.min(im.getWidth(), im.getHeight())) {
+			size = 2 * size;
+		}
+		QuadrantTree tree = new QuadrantTree(DrawImage.readPixels(im, size), tolerance);
+		String name = image.getPath();
+		int dot = name.lastIndexOf('.');
+		File file = new File((dot > 0 ? name.substring(0, dot) : name) + ".qtree");
+		write(tree, file);
+		System.out.println("Wrote " + file + ": " + tree.getNodeCount() + " nodes, " + file.length() / 1024 + " KB");
+	}
+
+	/**
+	 * A read-only view of the node at a given position.
+	 */
+	private class NodeView extends QTreeNodeView {
+
+		private int position, level;
+
+		NodeView(QTreeNode theParent, int thePosition, int x, int y, int size, int theLevel) {
+			super(theParent, x, y, size, colors.get(thePosition));
+			this.position = thePosition;
+			this.level = theLevel;
+		}
+
+		@Override
+		public boolean isLeaf() {
+			if (bits == null) {
+				return level == levels;
+			}
+			return (bits.get(position >> 6) & (1L << (position & 63))) == 0;
+		}
+
+		@Override
+		protected QTreeNode childView(int i) {
+			int half = getSize() / 2;
+			int x = getx() + (i & 1) * half;
+			int y = gety() + (i >> 1) * half;
+			int first = (bits == null) ? ImplicitQuadrantTree.firstChild(position) : 1 + 4 * rank(position);
+			return new NodeView(this, first + i, x, y, half, level + 1);
+		}
+	}
+}
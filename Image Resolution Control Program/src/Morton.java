@@ -0,0 +1,75 @@
+/**
+ * Morton (Z-order) codes for quadrant trees. The code of a cell interleaves
+ * the bits of its column and row, with the column in the lower bit of each
+ * pair. At every level the two bits give the index of the child that contains
+ * the cell (0 upper left, 1 upper right, 2 lower left, 3 lower right), so the
+ * nodes of one level of a QuadrantTree, listed in Morton order, are exactly
+ * the nodes returned by getPixels, in the same order.
+ *
+ * @author adamm
+ */
+public class Morton {
+
+	/**
+	 * Computes the Morton code of the cell in column x and row y.
+	 *
+	 * @param x The column of the cell, between 0 and 2^31 - 1.
+	 * @param y The row of the cell, between 0 and 2^31 - 1.
+	 * @return The Morton code of the cell.
+	 */
+	public static long encode(int x, int y) {
+		return spread(x) | (spread(y) << 1);
+	}
+
+	/**
+	 * Gets the column of the cell with the given Morton code.
+	 *
+	 * @param code A Morton code.
+	 * @return The column of the cell.
+	 */
+	public static int decodeX(long code) {
+		return compact(code);
+	}
+
+	/**
+	 * Gets the row of the cell with the given Morton code.
+	 *
+	 * @param code A Morton code.
+	 * @return The row of the cell.
+	 */
+	public static int decodeY(long code) {
+		return compact(code >>> 1);
+	}
+
+	/**
+	 * Moves bit i of value to bit 2i of the result.
+	 *
+	 * @param value The value to spread.
+	 * @return The spread value.
+	 */
+	private static long spread(int value) {
+		long v = value & 0xFFFFFFFFL;
+		v = (v | (v << 16)) & 0x0000FFFF0000FFFFL;
+		v = (v | (v << 8)) & 0x00FF00FF00FF00FFL;
+		v = (v | (v << 4)) & 0x0F0F0F0F0F0F0F0FL;
+		v = (v | (v << 2)) & 0x3333333333333333L;
+		v = (v | (v << 1)) & 0x5555555555555555L;
+		return v;
+	}
+
+	/**
+	 * Moves bit 2i of code to bit i of the result, dropping the odd bits.
+	 *
+	 * @param code The value to compact.
+	 * @return The compacted value.
+	 */
+	private static int compact(long code) {
+		long v = code & 0x5555555555555555L;
+		v = (v | (v >>> 1)) & 0x3333333333333333L;
+		v = (v | (v >>> 2)) & 0x0F0F0F0F0F0F0F0FL;
+		v = (v | (v >>> 4)) & 0x00FF00FF00FF00FFL;
+		v = (v | (v >>> 8)) & 0x0000FFFF0000FFFFL;
+		v = (v | (v >>> 16)) & 0x00000000FFFFFFFFL;
+		return (int) v;
+	}
+}
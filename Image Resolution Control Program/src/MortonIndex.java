@@ -0,0 +1,90 @@
+/**
+ * Direct lookup of the nodes of a quadrant tree by level and position. For
+ * every level the nodes are stored in an array ordered by the Morton code of
+ * their position, so the node at a given level containing a pixel is found
+ * with one bit interleaving and one array access.
+ *
+ * Positions that no node covers at a level (below a leaf of a tree that is not
+ * full) are left empty, and lookups there return null.
+ *
+ * @author adamm
+ */
+public class MortonIndex {
+
+	private QTreeNode[][] levels;
+	private int rootX, rootY, rootSize;
+
+	/**
+	 * Constructs the index of the tree rooted at root.
+	 *
+	 * @param root The root node of the tree.
+	 */
+	public MortonIndex(QTreeNode root) {
+		this.rootX = root.getx();
+		this.rootY = root.gety();
+		this.rootSize = root.getSize();
+		int depth = 0;
+		while ((1 << depth) < rootSize) {
+			depth++;
+		}
+		this.levels = new QTreeNode[depth + 1][];
+		for (int k = 0; k <= depth; k++) {
+			levels[k] = new QTreeNode[1 << (2 * k)];
+		}
+		add(root, 0);
+	}
+
+	/**
+	 * Stores the nodes of the subtree rooted at r.
+	 *
+	 * @param r     The root node of the subtree.
+	 * @param level The level of r.
+	 */
+	private void add(QTreeNode r, int level) {
+		int size = r.getSize();
+		levels[level][(int) Morton.encode((r.getx() - rootX) / size, (r.gety() - rootY) / size)] = r;
+		if (!r.isLeaf()) {
+			for (int i = 0; i < 4; i++) {
+				add(r.getChild(i), level + 1);
+			}
+		}
+	}
+
+	/**
+	 * Gets the deepest level stored in this index.
+	 *
+	 * @return The deepest level.
+	 */
+	public int getDepth() {
+		return levels.length - 1;
+	}
+
+	/**
+	 * Finds the node at the given level whose quadrant contains the point (x,y).
+	 *
+	 * @param theLevel The level of the node, counted from the root.
+	 * @param x        The x-coordinate of the point.
+	 * @param y        The y-coordinate of the point.
+	 * @return The node containing the point, or null if the point is outside the
+	 *         tree or no node at that level contains it.
+	 */
+	public QTreeNode find(int theLevel, int x, int y) {
+		x = x - rootX;
+		y = y - rootY;
+		if (theLevel < 0 || theLevel >= levels.length || x < 0 || y < 0 || x >= rootSize || y >= rootSize) {
+			return null;
+		}
+		int shift = levels.length - 1 - theLevel;
+		return levels[theLevel][(int) Morton.encode(x >> shift, y >> shift)];
+	}
+
+	/**
+	 * Gets the level of a node of the indexed tree from its size.
+	 *
+	 * @param r A node of the indexed tree.
+	 * @return The level of r.
+	 */
+	public int levelOf(QTreeNode r) {
+		return Integer.numberOfTrailingZeros(rootSize) - Integer.numberOfTrailingZeros(r.getSize());
+	}
+}
@@ -0,0 +1,96 @@
+/**
+ * A Duple that also remembers the last node of its list, so nodes and whole
+ * lists can be appended in constant time. Used by QuadrantTree to build the
+ * lists returned by getPixels and findMatching in time linear in their length.
+ * 
+ * @author adamm
+ */
+public class NodeList extends Duple implements QTreeVisitor {
+
+	private ListNode<QTreeNode> tail;
+
+	/**
+	 * Constructs an empty NodeList.
+	 */
+	public NodeList() {
+		super();
+		this.tail = null;
+	}
+
+	/**
+	 * Appends a node to the end of the list.
+	 * 
+	 * @param node The node to append.
+	 */
+	public void add(QTreeNode node) {
+		ListNode<QTreeNode> last = new ListNode<>(node);
+		if (tail == null) {
+			super.setFront(last);
+		} else {
+			tail.setNext(last);
+		}
+		tail = last;
+		setCount(getCount() + 1);
+	}
+
+	/**
+	 * Moves all nodes of other to the end of this list, leaving other empty.
+	 * 
+	 * @param other The list to append.
+	 */
+	public void append(NodeList other) {
+		if (other.tail == null) {
+			return;
+		}
+		if (tail == null) {
+			super.setFront(other.getFront());
+		} else {
+			tail.setNext(other.getFront());
+		}
+		tail = other.tail;
+		setCount(getCount() + other.getCount());
+		other.clear();
+	}
+
+	/**
+	 * Removes all nodes from the list.
+	 */
+	public void clear() {
+		super.setFront(null);
+		setCount(0);
+		tail = null;
+	}
+
+	/**
+	 * Gets the last node of the list.
+	 * 
+	 * @return The last node of the list, or null if the list is empty.
+	 */
+	public ListNode<QTreeNode> getTail() {
+		return tail;
+	}
+
+	/**
+	 * Replaces the list. The new tail is found by walking the new list.
+	 * 
+	 * @param first The first node of the new list.
+	 */
+	@Override
+	public void setFront(ListNode<QTreeNode> first) {
+		super.setFront(first);
+		tail = first;
+		while (tail != null && tail.getNext() != null) {
+			tail = tail.getNext();
+		}
+	}
+
+	/**
+	 * Appends the visited node to the end of the list.
+	 * 
+	 * @param node The node being visited.
+	 */
+	@Override
+	public void visit(QTreeNode node) {
+		add(node);
+	}
+}
@@ -0,0 +1,117 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Builds a quadrant tree on a ForkJoinPool. The four quadrants of every node
+ * larger than the sequential size are built as independent tasks; smaller
+ * subtrees are built on the current thread. Average colors come from a
+ * summed-area table shared by all tasks, so the tree is identical to the one
+ * built sequentially.
+ *
+ * @author adamm
+ */
+public class ParallelTreeBuilder {
+
+	/** Subtrees of this size or smaller are built without forking. */
+	public static final int DEFAULT_SEQUENTIAL_SIZE = 64;
+
+	private ForkJoinPool pool;
+	private int sequentialSize;
+
+	/**
+	 * Constructs a ParallelTreeBuilder that uses the common pool and the default
+	 * sequential size.
+	 */
+	public ParallelTreeBuilder() {
+		this(ForkJoinPool.commonPool(), DEFAULT_SEQUENTIAL_SIZE);
+	}
+
+	/**
+	 * Constructs a ParallelTreeBuilder.
+	 *
+	 * @param thePool           The pool that runs the build tasks.
+	 * @param theSequentialSize The size at or below which a subtree is built
+	 *                          sequentially.
+	 */
+	public ParallelTreeBuilder(ForkJoinPool thePool, int theSequentialSize) {
+		if (thePool == null || theSequentialSize < 1) {
+			throw new QTreeException("Invalid parallel build settings");
+		}
+		this.pool = thePool;
+		this.sequentialSize = theSequentialSize;
+	}
+
+	/**
+	 * Builds the quadrant tree of the given pixels array.
+	 *
+	 * @param thePixels The 2D array representing pixel values.
+	 * @return The root node of the constructed quadrant tree.
+	 */
+	public QTreeNode build(int[][] thePixels) {
+		SummedAreaTable table = new SummedAreaTable(thePixels);
+		return pool.invoke(new BuildTask(thePixels, table, 0, 0, thePixels.length));
+	}
+
+	/**
+	 * Recursively builds the subtree of the square region with upper left corner
+	 * at (x,y) on the current thread.
+	 *
+	 * @param pixels The 2D array representing pixel values.
+	 * @param table  The summed-area table of pixels.
+	 * @param x      The x-coordinate of the current node.
+	 * @param y      The y-coordinate of the current node.
+	 * @param size   The size of the current node.
+	 * @return The root node of the subtree.
+	 */
+	private static QTreeNode buildSequential(int[][] pixels, SummedAreaTable table, int x, int y, int size) {
+		if (size == 1) {
+			return new QTreeNode(null, x, y, size, pixels[x][y]);
+		}
+		int half = size / 2;
+		QTreeNode node = new QTreeNode(new QTreeNode[4], x, y, size, table.averageColor(x, y, size));
+		BottomUpBuilder.attach(node, buildSequential(pixels, table, x, y, half), 0);
+		BottomUpBuilder.attach(node, buildSequential(pixels, table, x + half, y, half), 1);
+		BottomUpBuilder.attach(node, buildSequential(pixels, table, x, y + half, half), 2);
+		BottomUpBuilder.attach(node, buildSequential(pixels, table, x + half, y + half, half), 3);
+		return node;
+	}
+
+	/**
+	 * Builds the subtree of one square region, forking its quadrants while the
+	 * region is larger than the sequential size.
+	 */
+	private class BuildTask extends RecursiveTask<QTreeNode> {
+
+		private static final long serialVersionUID = 1;
+
+		private int[][] pixels;
+		private SummedAreaTable table;
+		private int x, y, size;
+
+		BuildTask(int[][] thePixels, SummedAreaTable theTable, int xcoord, int ycoord, int theSize) {
+			this.pixels = thePixels;
+			this.table = theTable;
+			this.x = xcoord;
+			this.y = ycoord;
+			this.size = theSize;
+		}
+
+		@Override
+		protected QTreeNode compute() {
+			if (size <= sequentialSize) {
+				return buildSequential(pixels, table, x, y, size);
+			}
+			int half = size / 2;
+			BuildTask[] quadrants = { new BuildTask(pixels, table, x, y, half),
+					new BuildTask(pixels, table, x + half, y, half), new BuildTask(pixels, table, x, y + half, half),
+					new BuildTask(pixels, table, x + half, y + half, half) };
+			invokeAll(quadrants);
+
+			QTreeNode node = new QTreeNode(new QTreeNode[4], x, y, size, table.averageColor(x, y, size));
+			for (int i = 0; i < 4; i++) {
+				BottomUpBuilder.attach(node, quadrants[i].join(), i);
+			}
+			return node;
+		}
+	}
+}
@@ -0,0 +1,77 @@
+/**
+ * The pixels a quadrant tree is built from: a size x size square read from an
+ * image that may be smaller, in which case the missing pixels are 0, or larger,
+ * in which case it is cropped. The pixels are read in place, either from a 2D
+ * array or from a row-major int array such as the data buffer of a
+ * BufferedImage, so building a tree does not need a padded copy of the image.
+ *
+ * @author adamm
+ */
+public class PixelGrid {
+
+	private int[][] rows;
+	private int[] data;
+	private int offset, scanline, alpha;
+	private int width, height, size;
+
+	/**
+	 * Constructs a PixelGrid over a square 2D array.
+	 *
+	 * @param thePixels The 2D array representing pixel values, indexed as
+	 *                  [row][column].
+	 */
+	public PixelGrid(int[][] thePixels) {
+		this.rows = thePixels;
+		this.width = this.height = this.size = thePixels.length;
+	}
+
+	/**
+	 * Constructs a PixelGrid over a row-major array of pixels.
+	 *
+	 * @param theData     The array holding the pixels.
+	 * @param theOffset   The index of the upper left pixel.
+	 * @param theScanline The distance between the starts of two rows.
+	 * @param theWidth    The width of the image.
+	 * @param theHeight   The height of the image.
+	 * @param theSize     The size of the square to read.
+	 * @param theAlpha    Bits or-ed into every pixel read, such as 0xff000000
+	 *                    for images that store no alpha channel.
+	 */
+	public PixelGrid(int[] theData, int theOffset, int theScanline, int theWidth, int theHeight, int theSize,
+			int theAlpha) {
+		this.data = theData;
+		this.offset = theOffset;
+		this.scanline = theScanline;
+		this.width = theWidth;
+		this.height = theHeight;
+		this.size = theSize;
+		this.alpha = theAlpha;
+	}
+
+	/**
+	 * Gets the size of the square.
+	 *
+	 * @return The size.
+	 */
+	public int getSize() {
+		return this.size;
+	}
+
+	/**
+	 * Gets the pixel at the given row and column, or 0 if it is outside the
+	 * image.
+	 *
+	 * @param row The row of the pixel.
+	 * @param col The column of the pixel.
+	 * @return The pixel value.
+	 */
+	public int get(int row, int col) {
+		if (row >= height || col >= width) {
+			return 0;
+		}
+		if (rows != null) {
+			return rows[row][col];
+		}
+		return data[offset + row * scanline + col] | alpha;
+	}
+}
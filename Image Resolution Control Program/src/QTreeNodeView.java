@@ -0,0 +1,117 @@
+/**
+ * A read-only QTreeNode backed by some other tree representation. A view is
+ * created with the coordinates, size and color of the node it stands for and
+ * remembers the view it was reached from, so code written against QTreeNode
+ * (QuadrantTree queries, DrawImage, QuadTreeRenderer) works on it unchanged.
+ *
+ * Views are created on demand by getChild. Two views of the same node are only
+ * the same object when they were reached through the same parent view, which
+ * is the case for every node found by walking down from the root view. A
+ * backend that creates views of arbitrary nodes supplies their parents through
+ * parentView.
+ *
+ * @author adamm
+ */
+public abstract class QTreeNodeView extends QTreeNode {
+
+	private QTreeNode parentView;
+
+	/**
+	 * Constructs a view of a node.
+	 *
+	 * @param theParent The view of the parent node, or null for the root.
+	 * @param xcoord    The x-coordinate of the node.
+	 * @param ycoord    The y-coordinate of the node.
+	 * @param theSize   The size of the node.
+	 * @param theColor  The color of the node.
+	 */
+	protected QTreeNodeView(QTreeNode theParent, int xcoord, int ycoord, int theSize, int theColor) {
+		super(null, xcoord, ycoord, theSize, theColor);
+		this.parentView = theParent;
+	}
+
+	/**
+	 * Creates the view of the child node at the specified index. Only called for
+	 * views that are not leaves and with an index between 0 and 3.
+	 *
+	 * @param index The index of the child node.
+	 * @return The view of the child node.
+	 */
+	protected abstract QTreeNode childView(int index);
+
+	/**
+	 * Creates the view of the parent node for views that were not reached from
+	 * their parent. Views created by getChild never call this method.
+	 *
+	 * @return The view of the parent node, or null if this is the root.
+	 */
+	protected QTreeNode parentView() {
+		return null;
+	}
+
+	/**
+	 * Checks if the node behind this view is a leaf node.
+	 *
+	 * @return True if this node is a leaf node, otherwise false.
+	 */
+	@Override
+	public abstract boolean isLeaf();
+
+	/**
+	 * Gets the view of the parent node of this node.
+	 *
+	 * @return The parent node.
+	 */
+	@Override
+	public QTreeNode getParent() {
+		if (this.parentView == null) {
+			this.parentView = parentView();
+		}
+		return this.parentView;
+	}
+
+	/**
+	 * Gets a view of the child node at the specified index.
+	 *
+	 * @param index The index of the child node to retrieve.
+	 * @return The child node at the specified index.
+	 * @throws QTreeException if the index is out of bounds or the node is a leaf.
+	 */
+	@Override
+	public QTreeNode getChild(int index) throws QTreeException {
+		if (isLeaf() || index < 0 || index > 3) {
+			throw new QTreeException("Invalid1");
+		}
+		return childView(index);
+	}
+
+	@Override
+	public void setx(int newx) {
+		throw new QTreeException("Read only node");
+	}
+
+	@Override
+	public void sety(int newy) {
+		throw new QTreeException("Read only node");
+	}
+
+	@Override
+	public void setSize(int newSize) {
+		throw new QTreeException("Read only node");
+	}
+
+	@Override
+	public void setColor(int newColor) {
+		throw new QTreeException("Read only node");
+	}
+
+	@Override
+	public void setParent(QTreeNode newParent) {
+		throw new QTreeException("Read only node");
+	}
+
+	@Override
+	public void setChild(QTreeNode newChild, int index) throws QTreeException {
+		throw new QTreeException("Read only node");
+	}
+}
@@ -0,0 +1,15 @@
+/**
+ * Receives the nodes of a quadrant tree one at a time, in the order in which
+ * QuadrantTree.getPixels lists them, without building a list.
+ * 
+ * @author adamm
+ */
+public interface QTreeVisitor {
+
+	/**
+	 * Processes one node.
+	 * 
+	 * @param node The node being visited.
+	 */
+	public void visit(QTreeNode node);
+}
@@ -0,0 +1,525 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntPredicate;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Renders the images of one quadrant tree. A renderer owns its tree, the
+ * viewport shown on its canvas and the canvas itself, together with a cache of
+ * the images already drawn, so any number of renderers can draw different
+ * images, or different levels of the same tree, at the same time on a thread
+ * pool. DrawImage shows the canvas of one renderer in the Gui window.
+ *
+ * A resolution of at most FINAL_RESOLUTION draws the whole image, each canvas
+ * pixel showing a node of that level. Every resolution above it zooms into the
+ * quadrant of half the size containing a given point, which then fills the
+ * canvas at FINAL_RESOLUTION.
+ *
+ * The methods of a renderer are synchronized, so one renderer can be shared by
+ * several threads, which then draw one after the other. The images returned
+ * belong to the renderer and may be drawn over by its later calls; they must
+ * be copied to be kept.
+ *
+ * @author adamm
+ */
+public class QuadTreeRenderer {
+
+	/** Size of the canvas. */
+	public static final int CANVAS_SIZE = 512;
+	/** Resolution at which the canvas shows one node per pixel. */
+	public static final int FINAL_RESOLUTION = 9;
+	/** First resolution drawn when drawing progressively. */
+	public static final int PREVIEW_RESOLUTION = 4;
+	/** Smallest image that can be opened. */
+	public static final int SMALLEST_IMAGE = 256;
+	/** Larger images are tiled on disk. */
+	public static final int LARGEST_IN_MEMORY = 4 * CANVAS_SIZE;
+
+	private QuadrantTree tree;
+	private RenderCache cache;
+	private volatile BufferedImage canvas;       // Image drawn on
+	private int[] canvasPixels;                  // Pixels of canvas, stored row by row
+	private volatile QTreeNode startingNode;     // Node filling the canvas
+	private int viewX, viewY, viewScale;         // The canvas shows the image from (viewX,viewY) on, scaled down by viewScale
+	private BufferedImage markedImage;           // Image with the pixels marked by drawMatching
+	private BufferedImage viewportImage;         // Image of the last viewport drawn
+
+	/**
+	 * Constructs a QuadTreeRenderer for the given tree, with a cache of the
+	 * default budget.
+	 *
+	 * @param theTree The quadrant tree to draw.
+	 */
+	public QuadTreeRenderer(QuadrantTree theTree) {
+		this(theTree, new RenderCache());
+	}
+
+	/**
+	 * Constructs a QuadTreeRenderer for the given tree. The cache is told about
+	 * the regions of the tree that change, and must not be shared with a
+	 * renderer of another tree.
+	 *
+	 * @param theTree  The quadrant tree to draw.
+	 * @param theCache The cache of the images drawn.
+	 */
+	public QuadTreeRenderer(QuadrantTree theTree, RenderCache theCache) {
+		if (theTree == null || theTree.getRoot() == null || theCache == null) {
+			throw new QTreeException("Invalid renderer settings");
+		}
+		this.tree = theTree;
+		this.cache = theCache;
+		this.startingNode = theTree.getRoot();
+		setCanvas(createCanvas());
+		setViewport(startingNode.getx(), startingNode.gety(), Math.max(1, startingNode.getSize() / CANVAS_SIZE));
+		theTree.addRegionListener(theCache::invalidate);
+	}
+
+	/**
+	 * Opens an image file, or a .qtree file written by MappedQuadrantTree, and
+	 * builds the renderer of its quadrant tree. The image is padded with black
+	 * pixels to a square of a power-of-two size of at least CANVAS_SIZE; images
+	 * larger than LARGEST_IN_MEMORY are kept in a TiledPyramid and are never
+	 * compressed.
+	 *
+	 * @param file      The file.
+	 * @param tolerance The largest channel difference, exclusive, within a region
+	 *                  stored as a leaf; 0 builds the full tree.
+	 * @return The renderer of the image.
+	 * @throws IOException    if the file cannot be read.
+	 * @throws QTreeException if the image is smaller than SMALLEST_IMAGE.
+	 */
+	public static QuadTreeRenderer open(File file, int tolerance) throws IOException {
+		return open(file, tolerance, new RenderCache());
+	}
+
+	/**
+	 * Opens an image file, or a .qtree file, like open(file, tolerance), and
+	 * builds the renderer of its quadrant tree with the given cache.
+	 *
+	 * @param file      The file.
+	 * @param tolerance The largest channel difference, exclusive, within a region
+	 *                  stored as a leaf; 0 builds the full tree.
+	 * @param cache     The cache of the images drawn.
+	 * @return The renderer of the image.
+	 * @throws IOException    if the file cannot be read.
+	 * @throws QTreeException if the image is smaller than SMALLEST_IMAGE.
+	 */
+	public static QuadTreeRenderer open(File file, int tolerance, RenderCache cache) throws IOException {
+		if (file.getName().endsWith(".qtree")) {
+			// A tree saved by MappedQuadrantTree is read as it is needed
+			return new QuadTreeRenderer(new MappedQuadrantTree(file), cache);
+		}
+
+		// Read the dimensions of the image without decoding it
+		int width, height;
+		try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+			Iterator<ImageReader> readers = (input == null) ? null : ImageIO.getImageReaders(input);
+			if (readers == null || !readers.hasNext()) {
+				throw new IOException("Unknown image format");
+			}
+			ImageReader reader = readers.next();
+			reader.setInput(input);
+			width = reader.getWidth(0);
+			height = reader.getHeight(0);
+			reader.dispose();
+		}
+		int size = Math.min(width, height);
+		if (size < SMALLEST_IMAGE) {
+			throw new QTreeException("Image must be of size at least " + SMALLEST_IMAGE + "x" + SMALLEST_IMAGE);
+		}
+
+		int padded = CANVAS_SIZE;
+		while (padded < size) {
+			padded = 2 * padded;
+		}
+		QuadrantTree tree;
+		if (padded > LARGEST_IN_MEMORY) {
+			tree = new TiledPyramid(file, padded, TiledPyramid.DEFAULT_TILE_SIZE, TiledPyramid.DEFAULT_CACHE_BUDGET);
+		} else {
+			// Read the image pixels in place; pixels outside the image are 0
+			tree = new QuadrantTree(DrawImage.readPixels(ImageIO.read(file), padded), tolerance);
+		}
+		return new QuadTreeRenderer(tree, cache);
+	}
+
+	/**
+	 * Gets the tree drawn by this renderer.
+	 *
+	 * @return The quadrant tree.
+	 */
+	public QuadrantTree getTree() {
+		return this.tree;
+	}
+
+	/**
+	 * Gets the cache of the images drawn by this renderer.
+	 *
+	 * @return The render cache.
+	 */
+	public RenderCache getCache() {
+		return this.cache;
+	}
+
+	/**
+	 * Gets the size of the image, the size of the root of the tree.
+	 *
+	 * @return The image size.
+	 */
+	public int getImageSize() {
+		return tree.getRoot().getSize();
+	}
+
+	/**
+	 * Gets the highest resolution of the image: every resolution above
+	 * FINAL_RESOLUTION zooms into a quadrant of half the size.
+	 *
+	 * @return The highest resolution.
+	 */
+	public int getMaxResolution() {
+		int max = FINAL_RESOLUTION;
+		for (int s = CANVAS_SIZE; s < getImageSize(); s = 2 * s) {
+			max++;
+		}
+		return max;
+	}
+
+	/**
+	 * Gets the node whose subtree fills the canvas.
+	 *
+	 * @return The starting node.
+	 */
+	public QTreeNode getStartingNode() {
+		return this.startingNode;
+	}
+
+	/**
+	 * Gets the image last drawn on. While another thread draws, it is the image
+	 * being drawn, so the drawing can be shown as it progresses.
+	 *
+	 * @return The canvas.
+	 */
+	public BufferedImage getCanvas() {
+		return this.canvas;
+	}
+
+	/**
+	 * Draws the image with the given resolution. Above FINAL_RESOLUTION the
+	 * canvas shows the quadrant containing (x,y) of the level resolution -
+	 * FINAL_RESOLUTION. If progress is not null the resolutions from
+	 * PREVIEW_RESOLUTION on are drawn first and progress is told each one once
+	 * it is drawn; drawing stops when it returns false.
+	 *
+	 * @param resolution The resolution.
+	 * @param x          The x-coordinate of a point of the quadrant to show.
+	 * @param y          The y-coordinate of a point of the quadrant to show.
+	 * @param progress   Told every resolution drawn, or null.
+	 * @return The image drawn, or null if progress stopped the drawing.
+	 * @throws QTreeException if no node contains (x,y).
+	 */
+	public synchronized BufferedImage draw(int resolution, int x, int y, IntPredicate progress) {
+		QTreeNode root = tree.getRoot();
+		if (resolution <= FINAL_RESOLUTION) {
+			startingNode = root;
+		} else {
+			QTreeNode node = tree.findNode(root, resolution - FINAL_RESOLUTION, x, y);
+			if (node == null) {
+				throw new QTreeException("There is no node containing the position (" + x + "," + y + ")");
+			}
+			startingNode = node;
+			resolution = FINAL_RESOLUTION;
+		}
+		return render(startingNode, resolution, progress);
+	}
+
+	/**
+	 * Draws the image with the given resolution, like draw, marking in red the
+	 * nodes whose color is similar to that of the node containing (x,y). The
+	 * marked image is not cached. progress is told the final resolution once
+	 * more when the nodes are marked.
+	 *
+	 * @param resolution The resolution, at most FINAL_RESOLUTION within the
+	 *                   current starting node.
+	 * @param x          The x-coordinate of the point whose color is searched.
+	 * @param y          The y-coordinate of the point whose color is searched.
+	 * @param progress   Told every resolution drawn, or null.
+	 * @return The matching nodes, or null if (x,y) is outside the starting node
+	 *         or progress stopped the drawing.
+	 */
+	public synchronized Duple drawMatching(int resolution, int x, int y, IntPredicate progress) {
+		resolution = Math.min(resolution, FINAL_RESOLUTION);
+		QTreeNode colorNode = tree.findNode(startingNode, resolution, x, y);
+		if (colorNode == null) {
+			return null;
+		}
+
+		// Draw the pixels in an image that is not cached, so they can be marked
+		BufferedImage image = render(startingNode, resolution, progress);
+		if (image == null) {
+			return null;
+		}
+		if (markedImage == null) {
+			markedImage = createCanvas();
+		}
+		image.copyData(markedImage.getRaster());
+		setCanvas(markedImage);
+
+		// Search in parallel only if the pool has several threads and the
+		// subtree is deep enough to be split into tasks
+		ForkJoinPool pool = ForkJoinPool.commonPool();
+		Duple matching;
+		if (pool.getParallelism() > 1 && resolution > QuadrantTree.SEQUENTIAL_LEVELS) {
+			matching = tree.findMatching(startingNode, colorNode.getColor(), resolution, pool);
+		} else {
+			matching = tree.findMatching(startingNode, colorNode.getColor(), resolution);
+		}
+		for (ListNode<QTreeNode> p = matching.getFront(); p != null; p = p.getNext()) {
+			fillNode(p.getData(), 0xff0000);
+		}
+		if (progress != null) {
+			progress.test(resolution);
+		}
+		return matching;
+	}
+
+	/**
+	 * Draws the square viewport of the given size whose upper left corner is at
+	 * (x,y) of the image, which need not be the corner of a quadrant. Each pixel
+	 * of the canvas shows a node of size viewSize divided by the size of the
+	 * canvas, or of the next smaller size, and only the nodes inside the
+	 * viewport are visited. The parts outside the image are black.
+	 *
+	 * @param x        The x-coordinate of the upper left corner.
+	 * @param y        The y-coordinate of the upper left corner.
+	 * @param viewSize The size of the viewport.
+	 * @return The image drawn, which is not cached.
+	 */
+	public synchronized BufferedImage drawViewport(int x, int y, int viewSize) {
+		int scale = Math.max(1, viewSize / CANVAS_SIZE);
+		QTreeNode root = tree.getRoot();
+		int level = 0;
+		while ((root.getSize() >> level) > scale) {
+			level++;
+		}
+
+		if (viewportImage == null) {
+			viewportImage = createCanvas();
+		}
+		setCanvas(viewportImage);
+		Arrays.fill(canvasPixels, 0);
+		setViewport(x, y, scale);
+		tree.visitRegion(root, x, y, viewSize, viewSize, level, r -> fillNode(r, r.getColor()));
+		return viewportImage;
+	}
+
+	/**
+	 * Draws the nodes of the subtree rooted at r that are level levels below it
+	 * into a new image with one pixel per node, such as a reduced preview of the
+	 * whole image. Leaves above the level fill the pixels of their missing
+	 * descendants. The image is not cached and belongs to the caller.
+	 *
+	 * Like drawTile, this only reads the tree, so it does not wait for the other
+	 * methods of the renderer.
+	 *
+	 * @param r     The root node of the subtree.
+	 * @param level The number of levels below r, at most the depth of the
+	 *              subtree.
+	 * @return A new image of 2^level by 2^level pixels.
+	 */
+	public BufferedImage drawLevel(QTreeNode r, int level) {
+		if (level < 0 || (r.getSize() >> level) == 0) {
+			throw new QTreeException("Invalid level " + level);
+		}
+		return drawTile(r, 1 << level);
+	}
+
+	/**
+	 * Draws the subtree rooted at r into a new square image of the given width,
+	 * such as a map tile. Each pixel shows a node of the size of r divided by
+	 * the width; if the subtree has fewer levels, each of its pixels is scaled
+	 * up to a square of pixels. The image is not cached and belongs to the
+	 * caller.
+	 *
+	 * @param r     The root node of the subtree.
+	 * @param width The width of the image, a power of two.
+	 * @return A new image of width by width pixels.
+	 */
+	public BufferedImage drawTile(QTreeNode r, int width) {
+		if (width < 1 || Integer.bitCount(width) != 1) {
+			throw new QTreeException("Invalid width " + width);
+		}
+		int level = Math.min(Integer.numberOfTrailingZeros(width), Integer.numberOfTrailingZeros(r.getSize()));
+		int shift = Integer.numberOfTrailingZeros(r.getSize()) - Integer.numberOfTrailingZeros(width);
+		BufferedImage image = new BufferedImage(width, width, BufferedImage.TYPE_INT_RGB);
+		int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		visitLevel(r, level, (nodeX, nodeY, nodeSize, color) -> {
+			// Image coordinates are node coordinates scaled by 2^-shift
+			int x = scale(nodeX - r.getx(), shift), y = scale(nodeY - r.gety(), shift);
+			int size = Math.max(1, scale(nodeSize, shift));
+			for (int j = y; j < y + size; j++) {
+				Arrays.fill(pixels, j * width + x, j * width + x + size, color);
+			}
+		});
+		return image;
+	}
+
+	/**
+	 * Visits the nodes of the subtree rooted at r that are level levels below it,
+	 * like QuadrantTree.visitPixels. The colors of an ImplicitQuadrantTree are
+	 * read from one slice of its color array, without creating the nodes.
+	 *
+	 * @param r      The root node of the subtree.
+	 * @param level  The number of levels below r.
+	 * @param filler Receives the square and the color of every node.
+	 */
+	private void visitLevel(QTreeNode r, int level, SquareFiller filler) {
+		if (!(tree instanceof ImplicitQuadrantTree)) {
+			tree.visitPixels(r, level, node -> filler.fill(node.getx(), node.gety(), node.getSize(), node.getColor()));
+			return;
+		}
+		IntBuffer colors = ((ImplicitQuadrantTree) tree).getLevelColors(r, level);
+		int count = colors.remaining();
+		int size = r.getSize() >> (Integer.numberOfTrailingZeros(count) / 2);
+		// The nodes of a level are in Morton order
+		for (int i = 0; i < count; i++) {
+			filler.fill(r.getx() + Morton.decodeX(i) * size, r.gety() + Morton.decodeY(i) * size, size, colors.get(i));
+		}
+	}
+
+	/**
+	 * Divides a length by 2^shift, or multiplies it if shift is negative.
+	 *
+	 * @param length The length.
+	 * @param shift  The power of two.
+	 * @return The scaled length.
+	 */
+	private static int scale(int length, int shift) {
+		return (shift >= 0) ? length >> shift : length << -shift;
+	}
+
+	/**
+	 * Draws the subtree rooted at r with the given resolution, taking the image
+	 * from the cache if it was drawn before and drawing a new cached image
+	 * otherwise.
+	 *
+	 * @param r          The starting node.
+	 * @param resolution The resolution.
+	 * @param progress   Told every resolution drawn, or null.
+	 * @return The image drawn, or null if progress stopped the drawing.
+	 */
+	private BufferedImage render(QTreeNode r, int resolution, IntPredicate progress) {
+		setViewport(r.getx(), r.gety(), Math.max(1, r.getSize() / CANVAS_SIZE));
+		BufferedImage image = cache.get(r, resolution);
+		if (image != null) {
+			setCanvas(image);
+			if (progress != null && !progress.test(resolution)) {
+				return null;
+			}
+			return image;
+		}
+		image = cache.recycle();
+		if (image == null) {
+			image = createCanvas();
+		}
+		setCanvas(image);
+		int level = (progress == null) ? resolution : Math.min(PREVIEW_RESOLUTION, resolution);
+		for (; level <= resolution; level++) {
+			visitLevel(r, level, this::fillSquare);
+			if (progress != null && !progress.test(level)) {
+				return null;
+			}
+		}
+		cache.put(r, resolution, image);
+		return image;
+	}
+
+	/**
+	 * Makes the canvas show the image from (x,y) on, scaled down by scale.
+	 *
+	 * @param x     The x-coordinate of the upper left corner of the canvas.
+	 * @param y     The y-coordinate of the upper left corner of the canvas.
+	 * @param scale The number of image pixels per canvas pixel, in each direction.
+	 */
+	private void setViewport(int x, int y, int scale) {
+		this.viewX = x;
+		this.viewY = y;
+		this.viewScale = scale;
+	}
+
+	/**
+	 * Makes the given image the canvas drawn on.
+	 *
+	 * @param image An image of the size of the canvas whose data buffer is an
+	 *              int array.
+	 */
+	private void setCanvas(BufferedImage image) {
+		this.canvasPixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		this.canvas = image;
+	}
+
+	/**
+	 * Creates an image of the size of the canvas.
+	 *
+	 * @return The new image.
+	 */
+	private static BufferedImage createCanvas() {
+		return new BufferedImage(CANVAS_SIZE, CANVAS_SIZE, BufferedImage.TYPE_INT_RGB);
+	}
+
+	/**
+	 * Stores a color in the pixels of the canvas covered by node r. The parts of
+	 * r outside the canvas are clipped.
+	 *
+	 * @param r     The node.
+	 * @param color The color.
+	 */
+	private void fillNode(QTreeNode r, int color) {
+		fillSquare(r.getx(), r.gety(), r.getSize(), color);
+	}
+
+	/**
+	 * Stores a color in the pixels of the canvas covered by a square of the
+	 * image. The parts of the square outside the canvas are clipped.
+	 *
+	 * @param nodeX    The x-coordinate of the square in the image.
+	 * @param nodeY    The y-coordinate of the square in the image.
+	 * @param nodeSize The size of the square in the image.
+	 * @param color    The color.
+	 */
+	private void fillSquare(int nodeX, int nodeY, int nodeSize, int color) {
+		int x = Math.floorDiv(nodeX - viewX, viewScale);
+		int y = Math.floorDiv(nodeY - viewY, viewScale);
+		int size = Math.max(1, nodeSize / viewScale);
+		int right = Math.min(x + size, CANVAS_SIZE), bottom = Math.min(y + size, CANVAS_SIZE);
+		int left = Math.max(x, 0);
+		if (left >= right) {
+			return;
+		}
+		for (int j = Math.max(y, 0); j < bottom; j++) {
+			Arrays.fill(canvasPixels, j * CANVAS_SIZE + left, j * CANVAS_SIZE + right, color);
+		}
+	}
+
+	/**
+	 * Receives the squares of the image drawn by visitLevel.
+	 */
+	private interface SquareFiller {
+
+		/**
+		 * Draws a square of the image.
+		 *
+		 * @param x     The x-coordinate of the square.
+		 * @param y     The y-coordinate of the square.
+		 * @param size  The size of the square.
+		 * @param color The color of the square.
+		 */
+		void fill(int x, int y, int size, int color);
+	}
+}
@@ -1,3 +1,7 @@
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
 /**
  * Represents a quadrant tree data structure.
  * 
@@ -5,7 +9,42 @@
  */
 public class QuadrantTree {
 
+	/* Estimated sizes in bytes, for a 64-bit JVM with compressed references */
+	private static final int NODE_BYTES = 40;           // header, 4 ints, parent and children references
+	private static final int CHILDREN_ARRAY_BYTES = 32; // header, length and 4 references
+
+	/** Parallel searches do not split subtrees searched this many levels deep or less. */
+	public static final int SEQUENTIAL_LEVELS = 6;
+
+	/**
+	 * The ways a quadrant tree can be constructed. Every mode builds the same
+	 * tree.
+	 */
+	public static enum BuildMode {
+		/** Computes the color of every internal node with ColorKernels.averageColor. */
+		RECURSIVE,
+		/** Computes the color of every internal node from a summed-area table. */
+		SUMMED_AREA,
+		/** Builds the tree from the leaves up, deriving parents from children. */
+		BOTTOM_UP,
+		/** Builds the quadrants of the upper levels in parallel. */
+		PARALLEL
+	};
+
 	private QTreeNode root;
+	private long buildTime;
+	private MortonIndex index;
+	private ColorBounds bounds;
+	private int[][][] sums; // Red, green and blue sums per level and Morton position, kept for updates
+	private CopyOnWriteArrayList<RegionListener> listeners = new CopyOnWriteArrayList<>(); // Added from any thread
+
+	/**
+	 * Constructs an empty QuadrantTree. Used by subclasses that store the tree in
+	 * another representation and set the root themselves.
+	 */
+	protected QuadrantTree() {
+		this.root = null;
+	}
 
 	/**
 	 * Constructs a QuadrantTree from the given pixels array.
@@ -13,20 +52,98 @@ public class QuadrantTree {
 	 * @param thePixels The 2D array representing pixel values.
 	 */
 	public QuadrantTree(int[][] thePixels) {
-		this.root = build(thePixels, null, 0, 0, thePixels.length);
+		this(thePixels, BuildMode.RECURSIVE);
+	}
+
+	/**
+	 * Constructs a QuadrantTree from the given pixels array using the given build
+	 * mode.
+	 *
+	 * @param thePixels The 2D array representing pixel values.
+	 * @param mode      The way the tree is constructed.
+	 */
+	public QuadrantTree(int[][] thePixels, BuildMode mode) {
+		long start = System.nanoTime();
+		if (mode == BuildMode.BOTTOM_UP) {
+			this.root = new BottomUpBuilder().build(thePixels);
+		} else if (mode == BuildMode.PARALLEL) {
+			this.root = new ParallelTreeBuilder().build(thePixels);
+		} else {
+			SummedAreaTable table = null;
+			if (mode == BuildMode.SUMMED_AREA) {
+				table = new SummedAreaTable(thePixels);
+			}
+			this.root = build(thePixels, table, null, 0, 0, thePixels.length);
+		}
+		this.buildTime = System.nanoTime() - start;
+	}
+
+	/**
+	 * Constructs a compressed QuadrantTree from the given pixels array. Every
+	 * square region whose pixels differ by less than the tolerance in each
+	 * channel is stored as a single leaf with the average color of the region, so
+	 * uniform areas do not produce one leaf per pixel. Leaves can therefore be
+	 * larger than one pixel.
+	 *
+	 * @param thePixels The 2D array representing pixel values.
+	 * @param tolerance The largest channel difference, exclusive, within a region
+	 *                  stored as a leaf; 0 builds the full tree.
+	 */
+	public QuadrantTree(int[][] thePixels, int tolerance) {
+		this(new PixelGrid(thePixels), tolerance);
+	}
+
+	/**
+	 * Constructs a QuadrantTree bottom up, reading the pixels in place, for
+	 * instance straight from the raster of an image. Regions whose pixels differ
+	 * by less than the tolerance in each channel are stored as single leaves.
+	 *
+	 * @param thePixels The pixels of the image.
+	 * @param tolerance The largest channel difference, exclusive, within a region
+	 *                  stored as a leaf; 0 builds the full tree.
+	 */
+	public QuadrantTree(PixelGrid thePixels, int tolerance) {
+		long start = System.nanoTime();
+		this.root = new BottomUpBuilder(tolerance).build(thePixels);
+		this.buildTime = System.nanoTime() - start;
+	}
+
+	/**
+	 * Constructs a QuadrantTree from the given pixels array, building the
+	 * quadrants of subtrees larger than sequentialSize in parallel on the given
+	 * pool.
+	 *
+	 * @param thePixels      The 2D array representing pixel values.
+	 * @param pool           The pool that runs the build tasks.
+	 * @param sequentialSize The size at or below which a subtree is built
+	 *                       sequentially.
+	 */
+	public QuadrantTree(int[][] thePixels, ForkJoinPool pool, int sequentialSize) {
+		long start = System.nanoTime();
+		this.root = new ParallelTreeBuilder(pool, sequentialSize).build(thePixels);
+		this.buildTime = System.nanoTime() - start;
 	}
 
 	/**
 	 * Recursively builds a quadrant tree from the given pixels array.
 	 *
+	 * A leaf at (x,y) stores pixels[x][y], while the color of an internal node
+	 * averages the rows starting at y and the columns starting at x, as in
+	 * Gui.averageColor. The channel sums of a node are taken modulo 2^32 and
+	 * read as unsigned, which is exact for nodes of up to 4096x4096 pixels.
+	 * Every other way of building a tree follows the same indexing and the same
+	 * arithmetic, so that all of them build the same tree.
+	 *
 	 * @param pixels The 2D array representing pixel values.
+	 * @param table  The summed-area table of pixels, or null to compute averages
+	 *               by scanning the pixels.
 	 * @param Parent The parent node of the current node being constructed.
 	 * @param x      The x-coordinate of the current node.
 	 * @param y      The y-coordinate of the current node.
 	 * @param size   The size of the current node.
 	 * @return The root node of the constructed quadrant tree.
 	 */
-	private QTreeNode build(int[][] pixels, QTreeNode Parent, int x, int y, int size) {
+	private QTreeNode build(int[][] pixels, SummedAreaTable table, QTreeNode Parent, int x, int y, int size) {
 		if (size == 1) {
 			int color = pixels[x][y];
 			QTreeNode r = new QTreeNode(null, x, y, size, color);
@@ -34,15 +151,20 @@ public class QuadrantTree {
 			r.setParent(Parent);
 			return r;
 		} else {
-			int avgColor = Gui.averageColor(pixels, x, y, size);
+			int avgColor;
+			if (table != null) {
+				avgColor = table.averageColor(x, y, size);
+			} else {
+				avgColor = ColorKernels.averageColor(pixels, x, y, size);
+			}
 			int half = size / 2;
 			QTreeNode node = new QTreeNode(new QTreeNode[4], x, y, size, avgColor);
 			node.setParent(Parent);
 			// recursively call build to build the children of each node.
-			node.setChild(build(pixels, node, x, y, half), 0);
-			node.setChild(build(pixels, node, x + half, y, half), 1);
-			node.setChild(build(pixels, node, x, y + half, half), 2);
-			node.setChild(build(pixels, node, x + half, y + half, half), 3);
+			node.setChild(build(pixels, table, node, x, y, half), 0);
+			node.setChild(build(pixels, table, node, x + half, y, half), 1);
+			node.setChild(build(pixels, table, node, x, y + half, half), 2);
+			node.setChild(build(pixels, table, node, x + half, y + half, half), 3);
 			return node;
 		}
 	}
@@ -56,6 +178,100 @@ public class QuadrantTree {
 		return this.root;
 	}
 
+	/**
+	 * Sets the root node of this quadrant tree.
+	 *
+	 * @param newRoot The new root node.
+	 */
+	protected void setRoot(QTreeNode newRoot) {
+		this.root = newRoot;
+	}
+
+	/**
+	 * Records the time it took to construct this quadrant tree.
+	 *
+	 * @param nanos The build time in nanoseconds.
+	 */
+	protected void setBuildTime(long nanos) {
+		this.buildTime = nanos;
+	}
+
+	/**
+	 * Gets the time it took to construct this quadrant tree.
+	 *
+	 * @return The build time in milliseconds.
+	 */
+	public long getBuildTime() {
+		return this.buildTime / 1000000;
+	}
+
+	/**
+	 * Counts the nodes of this quadrant tree.
+	 *
+	 * @return The number of nodes.
+	 */
+	public int getNodeCount() {
+		return countNodes(getRoot(), false);
+	}
+
+	/**
+	 * Counts the leaves of this quadrant tree.
+	 *
+	 * @return The number of leaves.
+	 */
+	public int getLeafCount() {
+		return countNodes(getRoot(), true);
+	}
+
+	/**
+	 * Counts the nodes or the leaves of the subtree rooted at r.
+	 *
+	 * @param r          The root node of the subtree.
+	 * @param leavesOnly True to count only the leaves.
+	 * @return The number of nodes.
+	 */
+	private int countNodes(QTreeNode r, boolean leavesOnly) {
+		if (r.isLeaf()) {
+			return 1;
+		}
+		int count = leavesOnly ? 0 : 1;
+		for (int i = 0; i < 4; i++) {
+			count += countNodes(r.getChild(i), leavesOnly);
+		}
+		return count;
+	}
+
+	/**
+	 * Estimates the memory used by the nodes of this quadrant tree.
+	 *
+	 * @return The estimated memory, in bytes.
+	 */
+	public long getMemoryUsage() {
+		return estimateMemory(getNodeCount(), getLeafCount());
+	}
+
+	/**
+	 * Estimates the memory used by the full, uncompressed quadrant tree of an
+	 * image of the same size as this one.
+	 *
+	 * @return The estimated memory, in bytes.
+	 */
+	public long getFullMemoryUsage() {
+		long leaves = (long) getRoot().getSize() * getRoot().getSize();
+		return estimateMemory((4 * leaves - 1) / 3, leaves);
+	}
+
+	/**
+	 * Estimates the memory used by a tree of QTreeNode objects.
+	 *
+	 * @param nodes  The number of nodes.
+	 * @param leaves The number of leaves.
+	 * @return The estimated memory, in bytes.
+	 */
+	public static long estimateMemory(long nodes, long leaves) {
+		return NODE_BYTES * nodes + CHILDREN_ARRAY_BYTES * (nodes - leaves);
+	}
+
 	/**
 	 * Retrieves a list of nodes at the specified level in the quadrant tree.
 	 *
@@ -64,27 +280,98 @@ public class QuadrantTree {
 	 * @return A list of nodes at the specified level.
 	 */
 	public ListNode<QTreeNode> getPixels(QTreeNode r, int theLevel) {
-		if (r == null || theLevel == 0 || r.isLeaf()) {
+		if (r == null) {
+			return new ListNode<>(r);
+		}
+		NodeList list = new NodeList();
+		visitPixels(r, theLevel, list);
+		return list.getFront();
+	}
+
+	/**
+	 * Retrieves a list of nodes at the specified level in the quadrant tree,
+	 * collecting the nodes of the quadrants of the upper levels in parallel on
+	 * the given pool. The list is the one getPixels returns, in the same order.
+	 *
+	 * @param r        The root node of the subtree to search.
+	 * @param theLevel The level at which to retrieve nodes.
+	 * @param pool     The pool that runs the search tasks.
+	 * @return A list of nodes at the specified level.
+	 */
+	public ListNode<QTreeNode> getPixels(QTreeNode r, int theLevel, ForkJoinPool pool) {
+		if (r == null) {
 			return new ListNode<>(r);
 		}
-		ListNode<QTreeNode> list = null;
+		return pool.invoke(new SearchTask(r, false, 0, theLevel)).getFront();
+	}
 
-		// loop through each child
+	/**
+	 * Visits the nodes at the specified level in the quadrant tree, in the same
+	 * order as getPixels lists them, without building a list. Leaves above the
+	 * level are visited in place of their missing descendants.
+	 *
+	 * @param r        The root node of the subtree to visit.
+	 * @param theLevel The level at which to visit nodes.
+	 * @param visitor  The visitor that receives the nodes.
+	 */
+	public void visitPixels(QTreeNode r, int theLevel, QTreeVisitor visitor) {
+		if (theLevel == 0 || r.isLeaf()) {
+			visitor.visit(r);
+			return;
+		}
 		for (int i = 0; i < 4; i++) {
-			// recursively call getPixels to get lists of children for each parent
-			ListNode<QTreeNode> children = getPixels(r.getChild(i), theLevel - 1);
-			if (list == null) {
-				list = children;
-			} else {
-				// Concatenate the lists
-				ListNode<QTreeNode> curr = list;
-				while (curr.getNext() != null) {
-					curr = curr.getNext();
-				}
-				curr.setNext(children);
-			}
+			visitPixels(r.getChild(i), theLevel - 1, visitor);
+		}
+	}
+
+	/**
+	 * Retrieves the nodes at the specified level that intersect a rectangle, in
+	 * the order getPixels lists them. Subtrees outside the rectangle are not
+	 * visited, so the cost depends on the size of the rectangle at that level
+	 * rather than on the size of the image.
+	 *
+	 * @param x0       The x-coordinate of the upper left corner of the rectangle.
+	 * @param y0       The y-coordinate of the upper left corner of the rectangle.
+	 * @param w        The width of the rectangle.
+	 * @param h        The height of the rectangle.
+	 * @param theLevel The level at which to retrieve nodes.
+	 * @return A list of nodes at the specified level, or null if none intersects
+	 *         the rectangle.
+	 */
+	public ListNode<QTreeNode> queryRegion(int x0, int y0, int w, int h, int theLevel) {
+		NodeList list = new NodeList();
+		visitRegion(getRoot(), x0, y0, w, h, theLevel, list);
+		return list.getFront();
+	}
+
+	/**
+	 * Visits the nodes at the specified level that intersect a rectangle, in the
+	 * order getPixels lists them. Leaves above the level are visited in place of
+	 * their missing descendants.
+	 *
+	 * @param r        The root node of the subtree to visit.
+	 * @param x0       The x-coordinate of the upper left corner of the rectangle.
+	 * @param y0       The y-coordinate of the upper left corner of the rectangle.
+	 * @param w        The width of the rectangle.
+	 * @param h        The height of the rectangle.
+	 * @param theLevel The level at which to visit nodes.
+	 * @param visitor  The visitor that receives the nodes.
+	 */
+	public void visitRegion(QTreeNode r, int x0, int y0, int w, int h, int theLevel, QTreeVisitor visitor) {
+		if (r == null || w <= 0 || h <= 0) {
+			return;
+		}
+		long x = r.getx(), y = r.gety(), size = r.getSize();
+		if (x >= (long) x0 + w || x + size <= x0 || y >= (long) y0 + h || y + size <= y0) {
+			return;
+		}
+		if (theLevel == 0 || r.isLeaf()) {
+			visitor.visit(r);
+			return;
+		}
+		for (int i = 0; i < 4; i++) {
+			visitRegion(r.getChild(i), x0, y0, w, h, theLevel - 1, visitor);
 		}
-		return list;
 	}
 
 	/**
@@ -98,49 +385,192 @@ public class QuadrantTree {
 	 *         nodes.
 	 */
 	public Duple findMatching(QTreeNode r, int theColor, int theLevel) {
-		ListNode<QTreeNode> obj = new ListNode<>(r);
+		NodeList matching = new NodeList();
+		findMatching(r, theColor, theLevel, matching, Integer.MAX_VALUE);
+		return matching;
+	}
+
+	/**
+	 * Finds nodes in the quadrant tree with a color similar to the specified
+	 * color and at the specified level, searching the quadrants of the upper
+	 * levels in parallel on the given pool. The lists of the quadrants are joined
+	 * in quadrant order, so the nodes are listed in the same order as by
+	 * findMatching on a single thread.
+	 *
+	 * @param r        The root node of the subtree to search.
+	 * @param theColor The color to match.
+	 * @param theLevel The level at which to search for nodes.
+	 * @param pool     The pool that runs the search tasks.
+	 * @return A Duple containing a list of matching nodes and the count of such
+	 *         nodes.
+	 */
+	public Duple findMatching(QTreeNode r, int theColor, int theLevel, ForkJoinPool pool) {
+		return pool.invoke(new SearchTask(r, true, theColor, theLevel));
+	}
+
+	/**
+	 * Finds at most n nodes in the quadrant tree with a color similar to the
+	 * specified color and at the specified level. The search stops as soon as n
+	 * nodes are found, and the nodes found are the first n that findMatching
+	 * would list.
+	 *
+	 * @param r        The root node of the subtree to search.
+	 * @param theColor The color to match.
+	 * @param theLevel The level at which to search for nodes.
+	 * @param n        The maximum number of nodes to find.
+	 * @return A Duple containing a list of matching nodes and the count of such
+	 *         nodes.
+	 */
+	public Duple firstMatching(QTreeNode r, int theColor, int theLevel, int n) {
+		NodeList matching = new NodeList();
+		if (n > 0) {
+			findMatching(r, theColor, theLevel, matching, n);
+		}
+		return matching;
+	}
 
+	/**
+	 * Checks if any node in the quadrant tree at the specified level has a color
+	 * similar to the specified color. The search stops at the first match.
+	 *
+	 * @param r        The root node of the subtree to search.
+	 * @param theColor The color to match.
+	 * @param theLevel The level at which to search for nodes.
+	 * @return True if at least one node matches, otherwise false.
+	 */
+	public boolean anyMatching(QTreeNode r, int theColor, int theLevel) {
+		if (this.bounds != null) {
+			int match = this.bounds.classify(r, theColor);
+			if (match != ColorBounds.SOME) {
+				return match == ColorBounds.ALL;
+			}
+		}
 		if (r.isLeaf() || theLevel == 0) {
-			if (Gui.similarColor(r.getColor(), theColor)) {
-				return new Duple(obj, 1);
-			} else {
-				return new Duple();
+			return ColorKernels.similarColor(r.getColor(), theColor);
+		}
+		for (int i = 0; i < 4; i++) {
+			if (anyMatching(r.getChild(i), theColor, theLevel - 1)) {
+				return true;
 			}
 		}
+		return false;
+	}
 
-		Duple matching = new Duple();
-		ListNode<QTreeNode> newList = null;
-		int totalCount = 0;
+	/**
+	 * Counts the nodes in the quadrant tree with a color similar to the specified
+	 * color and at the specified level, without building a list.
+	 *
+	 * @param r        The root node of the subtree to search.
+	 * @param theColor The color to match.
+	 * @param theLevel The level at which to search for nodes.
+	 * @return The number of matching nodes, the same as the count returned by
+	 *         findMatching.
+	 */
+	public int countMatching(QTreeNode r, int theColor, int theLevel) {
+		if (this.bounds != null) {
+			int match = this.bounds.classify(r, theColor);
+			if (match == ColorBounds.NONE) {
+				return 0;
+			} else if (match == ColorBounds.ALL) {
+				return countPixels(r, theLevel);
+			}
+		}
+		if (r.isLeaf() || theLevel == 0) {
+			return ColorKernels.similarColor(r.getColor(), theColor) ? 1 : 0;
+		}
+		int count = 0;
+		for (int i = 0; i < 4; i++) {
+			count += countMatching(r.getChild(i), theColor, theLevel - 1);
+		}
+		return count;
+	}
+
+	/**
+	 * Appends the nodes of the subtree rooted at r with a color similar to the
+	 * specified color and at the specified level to a list, until the list holds
+	 * limit nodes.
+	 *
+	 * @param r        The root node of the subtree to search.
+	 * @param theColor The color to match.
+	 * @param theLevel The level at which to search for nodes.
+	 * @param matching The list the matching nodes are appended to.
+	 * @param limit    The number of nodes after which the search stops.
+	 * @return True if the list is full, otherwise false.
+	 */
+	private boolean findMatching(QTreeNode r, int theColor, int theLevel, NodeList matching, int limit) {
+		if (this.bounds != null) {
+			int match = this.bounds.classify(r, theColor);
+			if (match == ColorBounds.NONE) {
+				return false;
+			} else if (match == ColorBounds.ALL) {
+				return addPixels(r, theLevel, matching, limit);
+			}
+		}
+		if (r.isLeaf() || theLevel == 0) {
+			if (ColorKernels.similarColor(r.getColor(), theColor)) {
+				matching.add(r);
+			}
+			return matching.getCount() >= limit;
+		}
+		for (int i = 0; i < 4; i++) {
+			if (findMatching(r.getChild(i), theColor, theLevel - 1, matching, limit)) {
+				return true;
+			}
+		}
+		return false;
+	}
 
-		// Similar to getPixels but we decrement theLevel and get all children of parent
-		// i.
+	/**
+	 * Appends the nodes of the subtree rooted at r at the specified level to a
+	 * list, without testing their colors, until the list holds limit nodes.
+	 *
+	 * @param r        The root node of the subtree.
+	 * @param theLevel The level of the nodes.
+	 * @param matching The list the nodes are appended to.
+	 * @param limit    The number of nodes after which no more nodes are added.
+	 * @return True if the list is full, otherwise false.
+	 */
+	private boolean addPixels(QTreeNode r, int theLevel, NodeList matching, int limit) {
+		if (r.isLeaf() || theLevel == 0) {
+			matching.add(r);
+			return matching.getCount() >= limit;
+		}
 		for (int i = 0; i < 4; i++) {
-			Duple childDuple = findMatching(r.getChild(i), theColor, theLevel - 1);
-			if (childDuple.getFront() != null) {
-				// if first iteration update list accordingly
-				if (newList == null) {
-					newList = childDuple.getFront();
-				}
-				// concatenate the lists as they are entered
-				else {
-					ListNode<QTreeNode> current = newList;
-					// loop to the end of the linked Nodes
-					while (current.getNext() != null) {
-						current = current.getNext();
-					}
-					// Then set the final node to the front of the ChildDuple list.
-					current.setNext(childDuple.getFront());
-				}
-				totalCount += childDuple.getCount();
+			if (addPixels(r.getChild(i), theLevel - 1, matching, limit)) {
+				return true;
 			}
 		}
+		return false;
+	}
 
-		return new Duple(newList, totalCount);
+	/**
+	 * Counts the nodes that getPixels would list for the subtree rooted at r and
+	 * the specified level. In a full tree the count follows from the size of r.
+	 *
+	 * @param r        The root node of the subtree.
+	 * @param theLevel The level of the nodes.
+	 * @return The number of nodes.
+	 */
+	private int countPixels(QTreeNode r, int theLevel) {
+		if (this.bounds != null && this.bounds.isFull()) {
+			int depth = Math.min(theLevel, Integer.numberOfTrailingZeros(r.getSize()));
+			return 1 << (2 * depth);
+		}
+		if (r.isLeaf() || theLevel == 0) {
+			return 1;
+		}
+		int count = 0;
+		for (int i = 0; i < 4; i++) {
+			count += countPixels(r.getChild(i), theLevel - 1);
+		}
+		return count;
 	}
 
 	/**
 	 * Finds a node in the subtree rooted at the specified node and at the specified
-	 * level.
+	 * level. The search goes straight down into the quadrant containing the
+	 * point, or uses the Morton index if one was built with buildIndex. If a leaf
+	 * is reached above the level, as in a compressed tree, the leaf is returned.
 	 *
 	 * @param r        The root node of the subtree to search.
 	 * @param theLevel The level at which to search for the node.
@@ -150,20 +580,337 @@ public class QuadrantTree {
 	 *         not found.
 	 */
 	public QTreeNode findNode(QTreeNode r, int theLevel, int x, int y) {
+		if (!r.contains(x, y)) {
+			return null;
+		}
+		if (this.index != null) {
+			QTreeNode node = this.index.find(this.index.levelOf(r) + theLevel, x, y);
+			if (node != null) {
+				return node;
+			}
+		}
+		// Go straight down into the quadrant that contains the point
+		while (theLevel > 0 && !r.isLeaf()) {
+			int half = r.getSize() / 2;
+			int i = 0;
+			if (x >= r.getx() + half) {
+				i += 1;
+			}
+			if (y >= r.gety() + half) {
+				i += 2;
+			}
+			r = r.getChild(i);
+			theLevel--;
+		}
+		return r;
+	}
 
-		if (theLevel == 0 && r.contains(x, y)) {
-			return r;
+	/**
+	 * Builds a Morton index of this quadrant tree, after which findNode looks up
+	 * nodes in constant time instead of descending from r. The index holds one
+	 * reference per node.
+	 */
+	public void buildIndex() {
+		this.index = new MortonIndex(getRoot());
+	}
+
+	/**
+	 * Computes the color bounds of every subtree of this quadrant tree, after
+	 * which findMatching, firstMatching, countMatching and anyMatching skip the
+	 * subtrees that cannot match and accept the subtrees that all match without
+	 * visiting them. The bounds hold two ints per node.
+	 */
+	public void computeColorBounds() {
+		this.bounds = new ColorBounds(getRoot());
+	}
+
+	/**
+	 * Gets the color bounds of this quadrant tree.
+	 *
+	 * @return The color bounds, or null if they have not been computed.
+	 */
+	public ColorBounds getColorBounds() {
+		return this.bounds;
+	}
+
+	/**
+	 * Changes the pixel in column x and row y of the image, as if the tree had
+	 * been built from pixels in which pixels[y][x] is the given color. Only the
+	 * leaf storing the pixel and the ancestors of the pixel are updated.
+	 *
+	 * @param x     The column of the pixel.
+	 * @param y     The row of the pixel.
+	 * @param color The new color.
+	 * @throws QTreeException if the tree is compressed or read only.
+	 */
+	public void setPixel(int x, int y, int color) {
+		fillRect(x, y, 1, 1, color);
+	}
+
+	/**
+	 * Changes every pixel of a rectangle of the image to the given color, as if
+	 * the tree had been built from the changed pixels. Like in Gui.averageColor,
+	 * the pixel in column x and row y is pixels[y][x].
+	 *
+	 * The first update computes the red, green and blue sums of every node; each
+	 * update then only visits the nodes intersecting the rectangle and
+	 * recomputes their colors from the sums of their children. The color bounds
+	 * are dropped, and the region listeners are told which nodes changed.
+	 *
+	 * @param x0    The column of the upper left corner of the rectangle.
+	 * @param y0    The row of the upper left corner of the rectangle.
+	 * @param w     The width of the rectangle.
+	 * @param h     The height of the rectangle.
+	 * @param color The new color.
+	 * @throws QTreeException if the tree is compressed or read only.
+	 */
+	public void fillRect(int x0, int y0, int w, int h, int color) {
+		if (!isMutable()) {
+			throw new QTreeException("Read only tree");
 		}
-		// Use contains method to ensure the pixel exists
-		if (r.contains(x, y)) {
-			for (int i = 0; i < 4; i++) {
-				QTreeNode child = r.getChild(i);
-				QTreeNode result = findNode(child, theLevel - 1, x, y);
-				if (result != null) {
-					return result;
+		QTreeNode r = getRoot();
+		int left = Math.max(x0, r.getx()), top = Math.max(y0, r.gety());
+		int right = (int) Math.min((long) x0 + w, r.getx() + r.getSize());
+		int bottom = (int) Math.min((long) y0 + h, r.gety() + r.getSize());
+		if (left >= right || top >= bottom) {
+			return;
+		}
+		int[][][] channels = getSums();
+
+		// The averages cover the rectangle, the leaves its transpose
+		fillSums(channels, r, 0, 0, left, top, right, bottom, color);
+		visitRegion(r, top, left, bottom - top, right - left, channels[0].length - 1, leaf -> leaf.setColor(color));
+		this.bounds = null;
+		for (RegionListener listener : listeners) {
+			listener.regionChanged(left, top, right - left, bottom - top);
+			listener.regionChanged(top, left, bottom - top, right - left);
+		}
+	}
+
+	/**
+	 * Stores the color in the sums of the pixels of a rectangle below r and
+	 * recomputes the sums and colors of the nodes intersecting it.
+	 *
+	 * @param channels The channel sums of the tree, as returned by getSums.
+	 * @param r        The root node of the subtree, which intersects the
+	 *                 rectangle.
+	 * @param level    The level of r.
+	 * @param slot     The Morton position of r within its level.
+	 * @param left     The first column of the rectangle.
+	 * @param top      The first row of the rectangle.
+	 * @param right    The column after the rectangle.
+	 * @param bottom   The row after the rectangle.
+	 * @param color    The new color.
+	 */
+	private void fillSums(int[][][] channels, QTreeNode r, int level, int slot, int left, int top, int right,
+			int bottom, int color) {
+		int[][] redSums = channels[0], greenSums = channels[1], blueSums = channels[2];
+		if (level == redSums.length - 1) {
+			redSums[level][slot] = (color >> 16) & 0xFF;
+			greenSums[level][slot] = (color >> 8) & 0xFF;
+			blueSums[level][slot] = color & 0xFF;
+			return;
+		}
+		for (int i = 0; i < 4; i++) {
+			QTreeNode child = r.getChild(i);
+			int x = child.getx(), y = child.gety(), size = child.getSize();
+			if (x < right && left < x + size && y < bottom && top < y + size) {
+				fillSums(channels, child, level + 1, 4 * slot + i, left, top, right, bottom, color);
+			}
+		}
+		int c = 4 * slot;
+		int[] red = redSums[level + 1], green = greenSums[level + 1], blue = blueSums[level + 1];
+		redSums[level][slot] = red[c] + red[c + 1] + red[c + 2] + red[c + 3];
+		greenSums[level][slot] = green[c] + green[c + 1] + green[c + 2] + green[c + 3];
+		blueSums[level][slot] = blue[c] + blue[c + 1] + blue[c + 2] + blue[c + 3];
+		r.setColor(BottomUpBuilder.averageColor(redSums[level][slot], greenSums[level][slot], blueSums[level][slot],
+				r.getSize()));
+	}
+
+	/**
+	 * Checks if setPixel and fillRect can change the nodes of this tree. By
+	 * default a tree is mutable unless its nodes are read-only views; a
+	 * subclass whose nodes cannot be changed for another reason overrides this.
+	 *
+	 * @return True if the tree can be updated, otherwise false.
+	 */
+	public boolean isMutable() {
+		return !(getRoot() instanceof QTreeNodeView);
+	}
+
+	/**
+	 * Gets the channel sums of every node, computing them from the leaves the
+	 * first time. The red, green and blue sums are indexed by level and by the
+	 * Morton position of the node within its level, and fillRect keeps them up
+	 * to date. A subclass that replaces nodes updates the sums of the nodes it
+	 * replaces and of their ancestors.
+	 *
+	 * @return The red, green and blue sums, in that order.
+	 * @throws QTreeException if the tree is compressed, or too deep for the sums
+	 *                        of its leaves to fit in an array.
+	 */
+	protected int[][][] getSums() {
+		if (this.sums == null) {
+			this.sums = computeSums();
+		}
+		return this.sums;
+	}
+
+	/**
+	 * Sets the channel sums of every node, for a subclass that computes them
+	 * while building the tree.
+	 *
+	 * @param theSums The red, green and blue sums, as returned by getSums.
+	 */
+	protected void setSums(int[][][] theSums) {
+		this.sums = theSums;
+	}
+
+	/**
+	 * Creates the arrays of the channel sums of a full tree of the given depth,
+	 * filled with zeros.
+	 *
+	 * @param depth The level of the leaves.
+	 * @return The red, green and blue sums, indexed by level and Morton
+	 *         position.
+	 * @throws QTreeException if the tree is too deep for the sums of its leaves
+	 *                        to fit in an array.
+	 */
+	protected static int[][][] createSums(int depth) {
+		if (depth > 15) {
+			// The 4^depth leaf sums of a 65536x65536 image are too many for an array
+			throw new QTreeException("Cannot update a tree of depth " + depth);
+		}
+		int[][][] channels = new int[3][depth + 1][];
+		for (int k = 0; k <= depth; k++) {
+			for (int c = 0; c < 3; c++) {
+				channels[c][k] = new int[1 << (2 * k)];
+			}
+		}
+		return channels;
+	}
+
+	/**
+	 * Computes the channel sums of every node from the leaves, which store the
+	 * pixels transposed.
+	 *
+	 * @return The red, green and blue sums, indexed by level and Morton
+	 *         position.
+	 * @throws QTreeException if the tree is compressed, or too deep for the sums
+	 *                        of its leaves to fit in an array.
+	 */
+	private int[][][] computeSums() {
+		QTreeNode root = getRoot();
+		int depth = Integer.numberOfTrailingZeros(root.getSize());
+		int[][][] channels = createSums(depth);
+		int[][] red = channels[0], green = channels[1], blue = channels[2];
+		visitPixels(root, depth, leaf -> {
+			if (leaf.getSize() > 1) {
+				throw new QTreeException("Cannot update a compressed tree");
+			}
+			int slot = (int) Morton.encode(leaf.gety() - root.gety(), leaf.getx() - root.getx());
+			int color = leaf.getColor();
+			red[depth][slot] = (color >> 16) & 0xFF;
+			green[depth][slot] = (color >> 8) & 0xFF;
+			blue[depth][slot] = color & 0xFF;
+		});
+		for (int k = depth - 1; k >= 0; k--) {
+			for (int p = 0; p < red[k].length; p++) {
+				int c = 4 * p;
+				red[k][p] = red[k + 1][c] + red[k + 1][c + 1] + red[k + 1][c + 2] + red[k + 1][c + 3];
+				green[k][p] = green[k + 1][c] + green[k + 1][c + 1] + green[k + 1][c + 2] + green[k + 1][c + 3];
+				blue[k][p] = blue[k + 1][c] + blue[k + 1][c + 1] + blue[k + 1][c + 2] + blue[k + 1][c + 3];
+			}
+		}
+		return channels;
+	}
+
+	/**
+	 * Tells this tree that a subclass replaced the nodes of a region, after
+	 * updating their channel sums. The Morton index and the color bounds, which
+	 * refer to the old nodes, are dropped, and the region listeners are told
+	 * about the region.
+	 *
+	 * @param x The x-coordinate of the upper left corner of the region.
+	 * @param y The y-coordinate of the upper left corner of the region.
+	 * @param w The width of the region.
+	 * @param h The height of the region.
+	 */
+	protected void regionReplaced(int x, int y, int w, int h) {
+		this.index = null;
+		this.bounds = null;
+		for (RegionListener listener : listeners) {
+			listener.regionChanged(x, y, w, h);
+		}
+	}
+
+	/**
+	 * Adds a listener that is told about the regions changed by setPixel and
+	 * fillRect.
+	 *
+	 * @param listener The listener.
+	 */
+	public void addRegionListener(RegionListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Removes a listener added by addRegionListener.
+	 *
+	 * @param listener The listener.
+	 */
+	public void removeRegionListener(RegionListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Lists the nodes of a subtree at a level, or only those with a color
+	 * similar to a given one, forking a task per quadrant while the subtree is
+	 * searched more than SEQUENTIAL_LEVELS levels deep.
+	 */
+	private class SearchTask extends RecursiveTask<NodeList> {
+
+		private static final long serialVersionUID = 1;
+
+		private QTreeNode r;
+		private boolean match;   // False to list every node
+		private int color, level;
+
+		SearchTask(QTreeNode theRoot, boolean theMatch, int theColor, int theLevel) {
+			this.r = theRoot;
+			this.match = theMatch;
+			this.color = theColor;
+			this.level = theLevel;
+		}
+
+		@Override
+		protected NodeList compute() {
+			NodeList list = new NodeList();
+			if (match && bounds != null) {
+				int classified = bounds.classify(r, color);
+				if (classified == ColorBounds.NONE) {
+					return list;
+				} else if (classified == ColorBounds.ALL) {
+					match = false;
+				}
+			}
+			if (level <= SEQUENTIAL_LEVELS || r.isLeaf()) {
+				if (match) {
+					findMatching(r, color, level, list, Integer.MAX_VALUE);
+				} else {
+					visitPixels(r, level, list);
 				}
+				return list;
+			}
+			SearchTask[] quadrants = new SearchTask[4];
+			for (int i = 0; i < 4; i++) {
+				quadrants[i] = new SearchTask(r.getChild(i), match, color, level - 1);
+			}
+			invokeAll(quadrants);
+			for (int i = 0; i < 4; i++) {
+				list.append(quadrants[i].join());
 			}
+			return list;
 		}
-		return null;
 	}
 }
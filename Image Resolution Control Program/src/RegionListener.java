@@ -0,0 +1,18 @@
+/**
+ * Is told when the nodes of a quadrant tree covering a rectangle of the image
+ * change, for instance to drop the renders of that rectangle.
+ * 
+ * @author adamm
+ */
+public interface RegionListener {
+
+	/**
+	 * Processes a change of the nodes intersecting a rectangle.
+	 * 
+	 * @param x The x-coordinate of the upper left corner of the rectangle.
+	 * @param y The y-coordinate of the upper left corner of the rectangle.
+	 * @param w The width of the rectangle.
+	 * @param h The height of the rectangle.
+	 */
+	public void regionChanged(int x, int y, int w, int h);
+}
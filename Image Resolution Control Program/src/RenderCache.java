@@ -0,0 +1,235 @@
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of rendered images, one for every starting node and resolution the
+ * image was drawn with. Once a resolution has been drawn, showing it again
+ * only means displaying the cached image instead of visiting the tree and
+ * storing every pixel again.
+ *
+ * The cache holds at most a given number of bytes of pixels. When a new image
+ * does not fit, the images used least recently are evicted; the last one
+ * evicted is kept so it can be drawn over instead of allocating a new image.
+ *
+ * Entries are identified by the position and size of the starting node, so a
+ * cache must be cleared when the tree it was filled from is replaced.
+ *
+ * @author adamm
+ */
+public class RenderCache {
+
+	/** Default budget: 64 images of 512x512 pixels. */
+	public static final long DEFAULT_BUDGET = 64L * 512 * 512 * 4;
+
+	private LinkedHashMap<Key, BufferedImage> images;
+	private long budget, used;
+	private int hits, misses, evictions;
+	private BufferedImage spare;   // Last image evicted, to be reused
+
+	/**
+	 * Constructs a RenderCache with the default budget.
+	 */
+	public RenderCache() {
+		this(DEFAULT_BUDGET);
+	}
+
+	/**
+	 * Constructs a RenderCache holding at most the given number of bytes.
+	 *
+	 * @param theBudget The largest number of bytes of pixels cached.
+	 */
+	public RenderCache(long theBudget) {
+		if (theBudget < 0) {
+			throw new QTreeException("Invalid budget");
+		}
+		this.budget = theBudget;
+		this.images = new LinkedHashMap<>(16, 0.75f, true);
+	}
+
+	/**
+	 * Gets the image drawn from the given starting node with the given
+	 * resolution, and marks it as the most recently used.
+	 *
+	 * @param start      The starting node.
+	 * @param resolution The resolution.
+	 * @return The cached image, or null if there is none.
+	 */
+	public synchronized BufferedImage get(QTreeNode start, int resolution) {
+		BufferedImage image = images.get(new Key(start, resolution));
+		if (image == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return image;
+	}
+
+	/**
+	 * Stores the image drawn from the given starting node with the given
+	 * resolution, evicting the least recently used images if it does not fit.
+	 * An image larger than the budget is not stored.
+	 *
+	 * @param start      The starting node.
+	 * @param resolution The resolution.
+	 * @param image      The rendered image, which must not be changed afterwards.
+	 */
+	public synchronized void put(QTreeNode start, int resolution, BufferedImage image) {
+		long bytes = bytes(image);
+		if (bytes > budget) {
+			return;
+		}
+		BufferedImage old = images.put(new Key(start, resolution), image);
+		if (old != null) {
+			used -= bytes(old);
+		}
+		used += bytes;
+		Iterator<BufferedImage> eldest = images.values().iterator();
+		while (used > budget) {
+			BufferedImage evicted = eldest.next();
+			eldest.remove();
+			used -= bytes(evicted);
+			evictions++;
+			spare = evicted;
+		}
+	}
+
+	/**
+	 * Gets an image that was evicted from the cache, so it can be drawn over.
+	 *
+	 * @return The last evicted image, or null if there is none.
+	 */
+	public synchronized BufferedImage recycle() {
+		BufferedImage image = spare;
+		spare = null;
+		return image;
+	}
+
+	/**
+	 * Removes every cached image whose starting node overlaps the given square,
+	 * for instance because those pixels of the tree changed.
+	 *
+	 * @param x    The x-coordinate of the upper left corner of the square.
+	 * @param y    The y-coordinate of the upper left corner of the square.
+	 * @param size The size of the square.
+	 */
+	public void invalidate(int x, int y, int size) {
+		invalidate(x, y, size, size);
+	}
+
+	/**
+	 * Removes every cached image whose starting node overlaps the given
+	 * rectangle. Can be added to a QuadrantTree as a RegionListener.
+	 *
+	 * @param x The x-coordinate of the upper left corner of the rectangle.
+	 * @param y The y-coordinate of the upper left corner of the rectangle.
+	 * @param w The width of the rectangle.
+	 * @param h The height of the rectangle.
+	 */
+	public synchronized void invalidate(int x, int y, int w, int h) {
+		Iterator<Map.Entry<Key, BufferedImage>> entries = images.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<Key, BufferedImage> entry = entries.next();
+			Key key = entry.getKey();
+			if (key.x < x + w && x < key.x + key.size && key.y < y + h && y < key.y + key.size) {
+				used -= bytes(entry.getValue());
+				entries.remove();
+			}
+		}
+	}
+
+	/**
+	 * Removes every cached image.
+	 */
+	public synchronized void clear() {
+		images.clear();
+		used = 0;
+		spare = null;
+	}
+
+	/**
+	 * Gets the number of images cached.
+	 *
+	 * @return The number of images.
+	 */
+	public synchronized int size() {
+		return images.size();
+	}
+
+	/**
+	 * Gets the number of bytes of pixels cached.
+	 *
+	 * @return The memory used, in bytes.
+	 */
+	public synchronized long getMemoryUsage() {
+		return this.used;
+	}
+
+	/**
+	 * Gets the number of lookups that found an image.
+	 *
+	 * @return The number of hits.
+	 */
+	public synchronized int getHits() {
+		return this.hits;
+	}
+
+	/**
+	 * Gets the number of lookups that found no image.
+	 *
+	 * @return The number of misses.
+	 */
+	public synchronized int getMisses() {
+		return this.misses;
+	}
+
+	/**
+	 * Gets the number of images evicted to keep within the budget.
+	 *
+	 * @return The number of evictions.
+	 */
+	public synchronized int getEvictions() {
+		return this.evictions;
+	}
+
+	/**
+	 * Estimates the memory used by the pixels of an image, 4 bytes per pixel.
+	 *
+	 * @param image An image.
+	 * @return The memory used, in bytes.
+	 */
+	private static long bytes(BufferedImage image) {
+		return 4L * image.getWidth() * image.getHeight();
+	}
+
+	/**
+	 * Identifies a rendered image by the square of its starting node and its
+	 * resolution.
+	 */
+	private static class Key {
+
+		private int x, y, size, resolution;
+
+		Key(QTreeNode start, int theResolution) {
+			this.x = start.getx();
+			this.y = start.gety();
+			this.size = start.getSize();
+			this.resolution = theResolution;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) other;
+			return x == key.x && y == key.y && size == key.size && resolution == key.resolution;
+		}
+
+		@Override
+		public int hashCode() {
+			return ((x * 31 + y) * 31 + size) * 31 + resolution;
+		}
+	}
+}
@@ -0,0 +1,81 @@
+/**
+ * Per-channel prefix sums (an integral image) of a square pixels array. Once
+ * built, the sum of any rectangular region - and therefore its average color -
+ * is obtained with four lookups per channel instead of a scan of the region.
+ *
+ * The sums are kept in int arrays. Prefix sums of large images may overflow,
+ * but the sum of a region is recovered modulo 2^32 and read as unsigned, which
+ * is exact for every square up to 4096x4096 and wraps like Gui.averageColor
+ * beyond.
+ *
+ * @author adamm
+ */
+public class SummedAreaTable {
+
+	private int[] red, green, blue;
+	private int stride;
+
+	/**
+	 * Constructs the summed-area table of the given pixels array.
+	 *
+	 * @param thePixels The 2D array representing pixel values, indexed as
+	 *                  [row][column] like in Gui.averageColor.
+	 */
+	public SummedAreaTable(int[][] thePixels) {
+		int n = thePixels.length;
+		this.stride = n + 1;
+		this.red = new int[stride * stride];
+		this.green = new int[stride * stride];
+		this.blue = new int[stride * stride];
+
+		for (int row = 0; row < n; row++) {
+			int[] line = thePixels[row];
+			int rowRed = 0, rowGreen = 0, rowBlue = 0;
+			int above = row * stride;
+			int here = above + stride;
+			for (int col = 0; col < n; col++) {
+				int pixel = line[col];
+				rowRed += (pixel >> 16) & 0xFF;
+				rowGreen += (pixel >> 8) & 0xFF;
+				rowBlue += pixel & 0xFF;
+				red[here + col + 1] = red[above + col + 1] + rowRed;
+				green[here + col + 1] = green[above + col + 1] + rowGreen;
+				blue[here + col + 1] = blue[above + col + 1] + rowBlue;
+			}
+		}
+	}
+
+	/**
+	 * Computes the average color of the square region with upper left corner at
+	 * (x,y). The result is identical to Gui.averageColor on the same pixels,
+	 * including the rounding of the integer division.
+	 *
+	 * @param x    The x-coordinate (column) of the region.
+	 * @param y    The y-coordinate (row) of the region.
+	 * @param size The size of the region.
+	 * @return The average color of the region.
+	 */
+	public int averageColor(int x, int y, int size) {
+		long n = (long) size * size;
+		int r = (int) (regionSum(red, x, y, size) / n);
+		int g = (int) (regionSum(green, x, y, size) / n);
+		int b = (int) (regionSum(blue, x, y, size) / n);
+		return ((r & 0xFF) << 16) + ((g & 0xFF) << 8) + (b & 0xFF);
+	}
+
+	/**
+	 * Sums one channel over the square region with upper left corner at (x,y).
+	 *
+	 * @param table The prefix sums of the channel.
+	 * @param x     The x-coordinate (column) of the region.
+	 * @param y     The y-coordinate (row) of the region.
+	 * @param size  The size of the region.
+	 * @return The sum of the channel over the region.
+	 */
+	private long regionSum(int[] table, int x, int y, int size) {
+		int top = y * stride;
+		int bottom = (y + size) * stride;
+		int sum = table[bottom + x + size] - table[top + x + size] - table[bottom + x] + table[top + x];
+		return sum & 0xFFFFFFFFL;
+	}
+}
@@ -0,0 +1,351 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import javax.imageio.ImageIO;
+
+/**
+ * A quadrant tree over a sequence of frames, such as webcam captures or screen
+ * recordings. Each new frame is compared with the previous one block by block;
+ * only the subtrees of the blocks that changed are rebuilt, the others are kept
+ * as they are, and the ancestors of the rebuilt blocks get their colors from
+ * the channel sums of their children, which are shared with QuadrantTree so
+ * that setPixel and fillRect keep working between frames.
+ *
+ * Like QuadrantTree.build, a leaf at (x,y) stores pixels[x][y] while the
+ * averages are taken over pixels[y][x], so the subtree of the block at (x,y)
+ * is rebuilt when the pixels of that block or of its transpose, the block at
+ * (y,x), changed. After every update the tree is identical to the one built by
+ * new QuadrantTree(frame).
+ *
+ * @author adamm
+ */
+public class TemporalQuadrantTree extends QuadrantTree {
+
+	/** Default size of the blocks compared between frames. */
+	public static final int DEFAULT_BLOCK_SIZE = 16;
+
+	private int width, depth, blockSize, blockLevel, blocks;
+	private int[][] previous;    // Copy of the last frame
+	private boolean[][] changed; // Per block row and column, for the frame being read
+	private int rebuilt;         // Blocks rebuilt in the current frame
+	private int left, top, right, bottom; // Region of the blocks rebuilt in the current frame
+	private double[] ratios = new double[16];
+	private int frames;
+
+	/* Used while rebuilding a block */
+	private QTreeNode[] nodes;
+	private int[] red, green, blue;
+
+	/**
+	 * Constructs a TemporalQuadrantTree from the first frame, comparing frames
+	 * in blocks of the default size.
+	 *
+	 * @param theFrame The 2D array representing the pixel values of the frame.
+	 */
+	public TemporalQuadrantTree(int[][] theFrame) {
+		this(theFrame, DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * Constructs a TemporalQuadrantTree from the first frame, comparing frames
+	 * in blocks of the given size.
+	 *
+	 * @param theFrame     The 2D array representing the pixel values of the
+	 *                     frame.
+	 * @param theBlockSize The size of the blocks, a power of two; it is reduced
+	 *                     to the size of the frame if larger.
+	 * @throws QTreeException if the block size is not a power of two, or the
+	 *                        frame is too large for the channel sums.
+	 */
+	public TemporalQuadrantTree(int[][] theFrame, int theBlockSize) {
+		if (theBlockSize < 1 || Integer.bitCount(theBlockSize) != 1) {
+			throw new QTreeException("Invalid block size");
+		}
+		this.width = theFrame.length;
+		this.depth = Integer.numberOfTrailingZeros(width);
+		this.blockSize = Math.min(theBlockSize, width);
+		this.blockLevel = Integer.numberOfTrailingZeros(width / blockSize);
+		this.blocks = width / blockSize;
+		this.previous = new int[width][width];
+		this.changed = new boolean[blocks][blocks];
+		setSums(createSums(depth));
+		int count = blockSize * blockSize;
+		this.nodes = new QTreeNode[count];
+		this.red = new int[count];
+		this.green = new int[count];
+		this.blue = new int[count];
+		update(theFrame);
+	}
+
+	/**
+	 * Replaces the frame of this tree, rebuilding the subtrees of the blocks
+	 * that changed since the previous frame and recomputing their ancestors.
+	 * The other subtrees are kept, and the region listeners are told once about
+	 * the region covering the rebuilt blocks.
+	 *
+	 * @param theFrame The 2D array representing the pixel values of the new
+	 *                 frame, of the same size as the first one.
+	 * @return The fraction of the blocks that were rebuilt.
+	 */
+	public double update(int[][] theFrame) {
+		if (theFrame.length != width) {
+			throw new QTreeException("Frame size changed");
+		}
+		long start = System.nanoTime();
+		boolean first = getRoot() == null;
+		compare(theFrame, first);
+		rebuilt = 0;
+		left = top = width;
+		right = bottom = 0;
+		QTreeNode root = update(getRoot(), null, theFrame, 0, 0, width, 0, 0, first);
+		if (root != getRoot()) {
+			setRoot(root);
+		}
+		setBuildTime(System.nanoTime() - start);
+		if (rebuilt > 0) {
+			regionReplaced(left, top, right - left, bottom - top);
+		}
+
+		double ratio = (double) rebuilt / (blocks * blocks);
+		if (frames == ratios.length) {
+			ratios = Arrays.copyOf(ratios, 2 * frames);
+		}
+		ratios[frames++] = ratio;
+		return ratio;
+	}
+
+	/**
+	 * Marks the blocks of the frame that differ from the previous frame, and
+	 * copies them into the previous frame.
+	 *
+	 * @param frame The new frame.
+	 * @param all   True to mark every block.
+	 */
+	private void compare(int[][] frame, boolean all) {
+		for (int y = 0; y < width; y++) {
+			int[] row = frame[y], old = previous[y];
+			if (row.length != width) {
+				throw new QTreeException("Frame is not square");
+			}
+			boolean[] flags = changed[y / blockSize];
+			if (y % blockSize == 0) {
+				Arrays.fill(flags, all);
+			}
+			for (int b = 0, x = 0; b < blocks; b++, x += blockSize) {
+				if (all || !Arrays.equals(row, x, x + blockSize, old, x, x + blockSize)) {
+					flags[b] = true;
+					System.arraycopy(row, x, old, x, blockSize);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Updates the subtree of a node down to the blocks, rebuilding the blocks
+	 * that changed and recomputing the sums and colors of the nodes above them.
+	 *
+	 * @param r      The node, or null to create it.
+	 * @param parent The parent of the node.
+	 * @param frame  The new frame.
+	 * @param x      The x-coordinate of the node.
+	 * @param y      The y-coordinate of the node.
+	 * @param size   The size of the node.
+	 * @param level  The level of the node.
+	 * @param slot   The Morton position of the node within its level.
+	 * @param all    True to rebuild every block.
+	 * @return The updated node, which is a new node if it was rebuilt.
+	 */
+	private QTreeNode update(QTreeNode r, QTreeNode parent, int[][] frame, int x, int y, int size, int level,
+			int slot, boolean all) {
+		if (level == blockLevel) {
+			int bx = x / blockSize, by = y / blockSize;
+			if (all || changed[by][bx] || changed[bx][by]) {
+				r = rebuildBlock(frame, x, y, slot);
+				r.setParent(parent);
+				rebuilt++;
+				left = Math.min(left, x);
+				top = Math.min(top, y);
+				right = Math.max(right, x + size);
+				bottom = Math.max(bottom, y + size);
+			}
+			return r;
+		}
+
+		int before = rebuilt;
+		if (r == null) {
+			r = new QTreeNode(new QTreeNode[4], x, y, size, 0);
+			r.setParent(parent);
+		}
+		int half = size / 2;
+		for (int i = 0; i < 4; i++) {
+			QTreeNode child = (all) ? null : r.getChild(i);
+			QTreeNode updated = update(child, r, frame, x + (i & 1) * half, y + (i >> 1) * half, half, level + 1,
+					4 * slot + i, all);
+			if (updated != child) {
+				r.setChild(updated, i);
+			}
+		}
+		if (rebuilt > before) {
+			int[][][] channels = getSums();
+			int[][] redSums = channels[0], greenSums = channels[1], blueSums = channels[2];
+			int c = 4 * slot;
+			int[] red = redSums[level + 1], green = greenSums[level + 1], blue = blueSums[level + 1];
+			redSums[level][slot] = red[c] + red[c + 1] + red[c + 2] + red[c + 3];
+			greenSums[level][slot] = green[c] + green[c + 1] + green[c + 2] + green[c + 3];
+			blueSums[level][slot] = blue[c] + blue[c + 1] + blue[c + 2] + blue[c + 3];
+			r.setColor(BottomUpBuilder.averageColor(redSums[level][slot], greenSums[level][slot],
+					blueSums[level][slot], size));
+		}
+		return r;
+	}
+
+	/**
+	 * Builds the subtree of a block from the leaves up, like BottomUpBuilder,
+	 * and stores the channel sums of its nodes.
+	 *
+	 * @param frame The new frame.
+	 * @param x0    The x-coordinate of the block.
+	 * @param y0    The y-coordinate of the block.
+	 * @param slot  The Morton position of the block within its level.
+	 * @return The root node of the subtree.
+	 */
+	private QTreeNode rebuildBlock(int[][] frame, int x0, int y0, int slot) {
+		int[][][] channels = getSums();
+		int[][] redSums = channels[0], greenSums = channels[1], blueSums = channels[2];
+		int w = blockSize;
+		int shift = 2 * (depth - blockLevel), base = slot << shift;
+		for (int y = 0; y < w; y++) {
+			for (int x = 0; x < w; x++) {
+				int i = y * w + x;
+				int pixel = frame[y0 + y][x0 + x];
+				int m = base | (int) Morton.encode(x, y);
+				red[i] = redSums[depth][m] = (pixel >> 16) & 0xFF;
+				green[i] = greenSums[depth][m] = (pixel >> 8) & 0xFF;
+				blue[i] = blueSums[depth][m] = pixel & 0xFF;
+				nodes[i] = new QTreeNode(null, x0 + x, y0 + y, 1, frame[x0 + x][y0 + y]);
+			}
+		}
+
+		BottomUpBuilder.mergeLevels(w, red, green, blue, (p, c0, c1, c2, c3, px, py, size, color) -> {
+			QTreeNode node = new QTreeNode(new QTreeNode[4], x0 + px * size, y0 + py * size, size, color);
+			BottomUpBuilder.attach(node, nodes[c0], 0);
+			BottomUpBuilder.attach(node, nodes[c1], 1);
+			BottomUpBuilder.attach(node, nodes[c2], 2);
+			BottomUpBuilder.attach(node, nodes[c3], 3);
+			nodes[p] = node;
+			int k = Integer.numberOfTrailingZeros(size);
+			int m = (slot << (shift - 2 * k)) | (int) Morton.encode(px, py);
+			redSums[depth - k][m] = red[p];
+			greenSums[depth - k][m] = green[p];
+			blueSums[depth - k][m] = blue[p];
+		});
+
+		QTreeNode root = nodes[0];
+		Arrays.fill(nodes, null);
+		return root;
+	}
+
+	/**
+	 * Changes every pixel of a rectangle of the image to the given color, like
+	 * QuadrantTree.fillRect, and in the copy of the last frame, so that the
+	 * next frame is compared with the changed pixels.
+	 *
+	 * @param x0    The column of the upper left corner of the rectangle.
+	 * @param y0    The row of the upper left corner of the rectangle.
+	 * @param w     The width of the rectangle.
+	 * @param h     The height of the rectangle.
+	 * @param color The new color.
+	 */
+	@Override
+	public void fillRect(int x0, int y0, int w, int h, int color) {
+		super.fillRect(x0, y0, w, h, color);
+		int x1 = Math.max(x0, 0), y1 = Math.max(y0, 0);
+		int x2 = (int) Math.min((long) x0 + w, width), y2 = (int) Math.min((long) y0 + h, width);
+		for (int y = y1; y < y2 && x1 < x2; y++) {
+			Arrays.fill(previous[y], x1, x2, color);
+		}
+	}
+
+	/**
+	 * Gets the size of the blocks compared between frames.
+	 *
+	 * @return The block size.
+	 */
+	public int getBlockSize() {
+		return this.blockSize;
+	}
+
+	/**
+	 * Gets the number of frames read, including the first one.
+	 *
+	 * @return The number of frames.
+	 */
+	public int getFrameCount() {
+		return this.frames;
+	}
+
+	/**
+	 * Gets the fraction of the blocks rebuilt for every frame read. The first
+	 * frame is always built entirely.
+	 *
+	 * @return The rebuild ratios, one per frame.
+	 */
+	public double[] getRebuildRatios() {
+		return Arrays.copyOf(ratios, frames);
+	}
+
+	/**
+	 * Reads a sequence of images into a TemporalQuadrantTree and prints, for
+	 * every frame, the fraction of the blocks rebuilt and the time it took
+	 * compared with building the tree from scratch.
+	 *
+	 * @param args The image files in the order of the frames, optionally preceded
+	 *             by -b and the block size.
+	 * @throws IOException if an image cannot be read.
+	 */
+	public static void main(String[] args) throws IOException {
+		int first = 0, block = DEFAULT_BLOCK_SIZE;
+		if (args.length > 1 && args[0].equals("-b")) {
+			block = Integer.parseInt(args[1]);
+			first = 2;
+		}
+		if (args.length <= first) {
+			System.out.println("Usage: java TemporalQuadrantTree [-b blockSize] frame...");
+			return;
+		}
+		TemporalQuadrantTree tree = null;
+		int size = 0;
+		int[][] frame = null;
+		for (int i = first; i < args.length; i++) {
+			BufferedImage im = ImageIO.read(new File(args[i]));
+			if (im == null) {
+				throw new IOException("Not an image: " + args[i]);
+			}
+			if (tree == null) {
+				size = 1;
+				while (size < Math.min(im.getWidth(), im.getHeight())) {
+					size = 2 * size;
+				}
+				frame = new int[size][size];
+			}
+			PixelGrid grid = DrawImage.readPixels(im, size);
+			for (int y = 0; y < size; y++) {
+				for (int x = 0; x < size; x++) {
+					frame[y][x] = grid.get(y, x);
+				}
+			}
+			double ratio;
+			if (tree == null) {
+				tree = new TemporalQuadrantTree(frame, block);
+				ratio = 1;
+			} else {
+				ratio = tree.update(frame);
+			}
+			long update = tree.getBuildTime();
+			long full = new QuadrantTree(grid, 0).getBuildTime();
+			System.out.printf("%s: %.1f%% of the blocks rebuilt in %d ms (full build %d ms)%n", args[i],
+					100 * ratio, update, full);
+		}
+	}
+}
@@ -128,6 +128,787 @@ public class TestQuadrant {
 		} catch (Exception e) {ex(e); testPassed = false;}		
 		return testPassed;
 	}		
+	
+	/* Test the summed-area table, bottom-up and parallel build modes */
+	private static boolean test7() {
+		boolean testPassed = true;
+		int[][] pixels = randomPixels(64, 7);
+		try {
+			QuadrantTree tree = new QuadrantTree(pixels);
+			QuadrantTree fast = new QuadrantTree(pixels, QuadrantTree.BuildMode.SUMMED_AREA);
+			if (!sameTree(tree.getRoot(), fast.getRoot())) testPassed = false;
+			fast = new QuadrantTree(pixels, QuadrantTree.BuildMode.BOTTOM_UP);
+			if (!sameTree(tree.getRoot(), fast.getRoot())) testPassed = false;
+			if (!sameParents(fast.getRoot())) testPassed = false;
+			fast = new QuadrantTree(pixels, QuadrantTree.BuildMode.PARALLEL);
+			if (!sameTree(tree.getRoot(), fast.getRoot())) testPassed = false;
+			java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(4);
+			fast = new QuadrantTree(pixels, pool, 4);
+			pool.shutdown();
+			if (!sameTree(tree.getRoot(), fast.getRoot())) testPassed = false;
+			if (!sameParents(fast.getRoot())) testPassed = false;
+			SummedAreaTable table = new SummedAreaTable(pixels);
+			if (table.averageColor(3, 17, 5) != Gui.averageColor(pixels, 3, 17, 5)) testPassed = false;
+			// At 4096x4096 the red sum no longer fits in a signed int
+			int[][] large = new int[4096][4096];
+			for (int[] row : large) java.util.Arrays.fill(row, 0xffc80000);
+			large[5][7] = 0xffc90000;
+			if (Gui.averageColor(large, 0, 0, 4096) != 0xc80000 || ColorKernels.averageColor(large, 0, 0, 4096) != 0xc80000
+					|| new SummedAreaTable(large).averageColor(0, 0, 4096) != 0xc80000) testPassed = false;
+			int red = 0;
+			for (int[] row : large) for (int pixel : row) red += (pixel >> 16) & 0xFF;
+			if (BottomUpBuilder.averageColor(red, 0, 0, 4096) != 0xc80000) testPassed = false;
+		} catch (Exception e) {ex(e); testPassed = false;}
+		return testPassed;
+	}
+	
+	/* Test the compact array representation */
+	private static boolean test8() {
+		boolean testPassed = true;
+		int[][] pixels = randomPixels(32, 8);
+		try {
+			QuadrantTree tree = new QuadrantTree(pixels);
+			CompactQuadrantTree compact = new CompactQuadrantTree(pixels);
+			if (!sameTree(tree.getRoot(), compact.getRoot())) testPassed = false;
+			if (compact.getNodeCount() != 1365) testPassed = false;
+			if (compact.getMemoryUsage() >= compact.getFullMemoryUsage()) testPassed = false;
+			QTreeNode r = compact.findNode(compact.getRoot(), 5, 3, 7);
+			if (r.getColor() != pixels[3][7]) testPassed = false;
+			if (r.getParent().getParent().getParent().getParent().getParent() != compact.getRoot()) testPassed = false;
+			if (length(compact.getPixels(compact.getRoot(), 3)) != 64) testPassed = false;
+			if (compact.findMatching(compact.getRoot(), pixels[0][0], 5).getCount() 
+					!= tree.findMatching(tree.getRoot(), pixels[0][0], 5).getCount()) testPassed = false;
+			if (new CompactQuadrantTree(new int[][] {{5}}).getRoot().getColor() != 5) testPassed = false;
+		} catch (Exception e) {ex(e); testPassed = false;}
+		return testPassed;
+	}
+	
+	/* Test the implicit level-order representation */
+	private static boolean test9() {
+		boolean testPassed = true;
+		int[][] pixels = randomPixels(32, 9);
+		try {
+			QuadrantTree tree = new QuadrantTree(pixels);
+			ImplicitQuadrantTree implicit = new ImplicitQuadrantTree(pixels);
+			if (!sameTree(tree.getRoot(), implicit.getRoot())) testPassed = false;
+			if (ImplicitQuadrantTree.levelStart(2) != 5 || ImplicitQuadrantTree.parent(8) != 1) testPassed = false;
+			
+			// The colors of a level are listed in the same order as getPixels
+			java.nio.IntBuffer colors = implicit.getLevelColors(3);
+			ListNode<QTreeNode> list = tree.getPixels(tree.getRoot(), 3);
+			for (int i = 0; i < 64; ++i, list = list.getNext())
+				if (colors.get(i) != list.getData().getColor()) testPassed = false;
+			if (list != null || colors.remaining() != 64) testPassed = false;
+			
+			QTreeNode node = implicit.getRoot().getChild(2).getChild(1);
+			colors = implicit.getLevelColors(node, 10);
+			list = tree.getPixels(tree.getRoot().getChild(2).getChild(1), 10);
+			for (int i = 0; i < colors.remaining(); ++i, list = list.getNext())
+				if (colors.get(i) != list.getData().getColor()) testPassed = false;
+			if (list != null) testPassed = false;
+			
+			// The renderer draws the slices of the levels
+			QuadTreeRenderer plain = new QuadTreeRenderer(tree), sliced = new QuadTreeRenderer(implicit);
+			java.awt.image.BufferedImage[] images = {plain.drawLevel(tree.getRoot(), 3), sliced.drawLevel(implicit.getRoot(), 3),
+					plain.drawTile(tree.getRoot().getChild(2), 64), sliced.drawTile(node.getParent(), 64),
+					plain.draw(4, 0, 0, null), sliced.draw(4, 0, 0, null)};
+			for (int k = 0; k < images.length; k += 2) {
+				int w = images[k].getWidth();
+				if (!java.util.Arrays.equals(images[k].getRGB(0, 0, w, w, null, 0, w), images[k + 1].getRGB(0, 0, w, w, null, 0, w))) testPassed = false;
+			}
+		} catch (Exception e) {ex(e); testPassed = false;}
+		return testPassed;
+	}
+	
+	/* Test Morton codes and direct node lookup */
+	private static boolean test10() {
+		boolean testPassed = true;
+		int[][] pixels = randomPixels(64, 10);
+		try {
+			if (Morton.encode(3, 5) != 39 || Morton.decodeX(39) != 3 || Morton.decodeY(39) != 5) testPassed = false;
+			if (Morton.decodeY(Morton.encode(65535, 40000)) != 40000) testPassed = false;
+			
+			QuadrantTree tree = new QuadrantTree(pixels);
+			QuadrantTree indexed = new QuadrantTree(pixels);
+			indexed.buildIndex();
+			ImplicitQuadrantTree implicit = new ImplicitQuadrantTree(pixels);
+			QTreeNode sub = tree.getRoot().getChild(3);
+			QTreeNode indexedSub = indexed.getRoot().getChild(3);
+			for (int level = 0; level <= 6; ++level)
+				for (int x = 0; x < 64; x += 5)
+					for (int y = 0; y < 64; y += 3) {
+						QTreeNode expected = tree.findNode(tree.getRoot(), level, x, y);
+						QTreeNode r = indexed.findNode(indexed.getRoot(), level, x, y);
+						QTreeNode s = implicit.findNode(implicit.getRoot(), level, x, y);
+						if (!sameTree(expected, r) || !sameTree(expected, s)) testPassed = false;
+						if (level > 5) continue;
+						expected = tree.findNode(sub, level, x, y);
+						r = indexed.findNode(indexedSub, level, x, y);
+						if ((expected == null) != (r == null) || (r != null && !sameTree(expected, r))) testPassed = false;
+					}
+			if (indexed.findNode(indexed.getRoot(), 0, 0, 0) != indexed.getRoot()) testPassed = false;
+			
+			// Parents of nodes found directly are computed from their index
+			QTreeNode s = implicit.findNode(implicit.getRoot(), 6, 40, 21);
+			if (s.getParent().getParent().getParent().getParent().getParent().getParent() != implicit.getRoot()) testPassed = false;
+			if (!sameTree(s.getParent().getParent(), tree.findNode(tree.getRoot(), 4, 40, 21))) testPassed = false;
+		} catch (Exception e) {ex(e); testPassed = false;}
+		return testPassed;
+	}
+	
+	/* Test the linear-time lists and the visitor */
+	private static boolean test11() {
+		boolean testPassed = true;
+		int[][] pixels = randomPixels(64, 11);
+		try {
+			QuadrantTree tree = new QuadrantTree(pixels);
+			NodeList visited = new NodeList();
+			tree.visitPixels(tree.getRoot(), 4, visited);
+			ListNode<QTreeNode> list = tree.getPixels(tree.getRoot(), 4);
+			if (visited.getCount() != 256 || length(list) != 256) testPassed = false;
+			for (ListNode<QTreeNode> p = visited.getFront(); p != null; p = p.getNext(), list = list.getNext())
+				if (p.getData() != list.getData()) testPassed = false;
+			if (visited.getTail().getData() != tree.findNode(tree.getRoot(), 4, 63, 63)) testPassed = false;
+			
+			NodeList other = new NodeList();
+			other.add(tree.getRoot());
+			visited.append(other);
+			if (visited.getCount() != 257 || visited.getTail().getData() != tree.getRoot()) testPassed = false;
+			if (other.getCount() != 0 || other.getFront() != null) testPassed = false;
+			
+			Duple pair = tree.findMatching(tree.getRoot(), pixels[5][9], 6);
+			if (pair.getCount() < 1 || length(pair.getFront()) != pair.getCount()) testPassed = false;
+		} catch (Exception e) {ex(e); testPassed = false;}
+		return testPassed;
+	}
+	
+	/* Test countMatching, anyMatching and firstMatching */
+	private static boolean test12() {
+		boolean testPassed = true;
+		int[][] pixels = new int[32][32];
+		for (int i = 0; i < 32; ++i)
+			for (int j = 0; j < 32; ++j)
+				pixels[i][j] = i;
+		try {
+			QuadrantTree tree = new QuadrantTree(pixels);
+			QTreeNode root = tree.getRoot();
+			if (tree.countMatching(root,1,5) != 512) testPassed = false;
+			if (tree.countMatching(root,2,7) != 544) testPassed = false;
+			if (!tree.anyMatching(root,20,5) || tree.anyMatching(root,0xff0000,5)) testPassed = false;
+			Duple pair = tree.firstMatching(root,2,5,10);
+			Duple all = tree.findMatching(root,2,5);
+			if (pair.getCount() != 10 || length(pair.getFront()) != 10) testPassed = false;
+			ListNode<QTreeNode> p = pair.getFront(), q = all.getFront();
+			for (; p != null; p = p.getNext(), q = q.getNext())
+				if (p.getData() != q.getData()) testPassed = false;
+			if (tree.firstMatching(root,0xff0000,5,10).getFront() != null) testPassed = false;
+		} catch (Exception e) {ex(e); testPassed = false;}
+		return testPassed;
+	}
+	
+	/* Test searches pruned with color bounds */
+	private static boolean test13() {
+		boolean testPassed = true;
+		int[][] pixels = new int[64][64];
+		for (int i = 0; i < 64; ++i)
+			for (int j = 0; j < 64; ++j)
+				pixels[i][j] = (i < 32) ? 0x102030 + j : 0x807060 + (i & 7);
+		int[][] noisy = randomPixels(64, 13);
+		try {
+			for (int[][] image : new int[][][] {pixels, noisy}) {
+				QuadrantTree tree = new QuadrantTree(image);
+				QuadrantTree bounded = new QuadrantTree(image);
+				bounded.computeColorBounds();
+				QTreeNode root = bounded.getRoot();
+				if (image == pixels && bounded.getColorBounds().getMax(root) != 0x80706f) testPassed = false;
+				int[] colors = {0x102030, 0x807060, 0x10203f, 0x808080, image[7][50], 0};
+				for (int color : colors)
+					for (int level = 0; level <= 7; ++level) {
+						Duple expected = tree.findMatching(tree.getRoot(), color, level);
+						Duple pair = bounded.findMatching(root, color, level);
+						if (pair.getCount() != expected.getCount()) testPassed = false;
+						ListNode<QTreeNode> p = pair.getFront(), q = expected.getFront();
+						for (; p != null && q != null; p = p.getNext(), q = q.getNext())
+							if (!sameTree(p.getData(), q.getData())) testPassed = false;
+						if (p != q) testPassed = false;
+						if (bounded.countMatching(root, color, level) != expected.getCount()) testPassed = false;
+						if (bounded.anyMatching(root, color, level) != (expected.getCount() > 0)) testPassed = false;
+						if (bounded.firstMatching(root, color, level, 3).getCount() != Math.min(3, expected.getCount())) testPassed = false;
+					}
+			}
+		} catch (Exception e) {ex(e); testPassed = false;}
+		return testPassed;
+	}
+	
+	/* Test the compressed tree */
+	private static boolean test14() {
+		boolean testPassed = true;
+		int[][] pixels = new int[64][64];
+		for (int i = 0; i < 64; ++i)
+			for (int j = 0; j < 64; ++j)
+				pixels[i][j] = (i < 32 && j < 32) ? 0x102030 + (j & 3) : (i * j + i + j) * 2039;
+		try {
+			QuadrantTree full = new QuadrantTree(pixels, 0);
+			if (!sameTree(full.getRoot(), new QuadrantTree(pixels).getRoot())) testPassed = false;
+			QuadrantTree tree = new QuadrantTree(pixels, 5);
+			QTreeNode root = tree.getRoot();
+			// The upper left quadrant collapses into one leaf of size 32
+			if (tree.getNodeCount() != 2 + 3 * 1365) testPassed = false;
+			if (tree.getLeafCount() != 1 + 3 * 1024) testPassed = false;
+			if (!root.getChild(0).isLeaf() || root.getChild(0).getColor() != 0x102031) testPassed = false;
+			if (tree.getMemoryUsage() >= tree.getFullMemoryUsage()) testPassed = false;
+			if (!sameTree(root.getChild(3), full.getRoot().getChild(3))) testPassed = false;
+			if (!sameParents(root)) testPassed = false;
+			
+			// Queries stop at the large leaf
+			if (tree.findNode(root, 6, 10, 20) != root.getChild(0)) testPassed = false;
+			if (tree.findNode(root, 6, 10, 40).getSize() != 1) testPassed = false;
+			if (length(tree.getPixels(root, 6)) != 1 + 3 * 1024) testPassed = false;
+			int count = tree.countMatching(root, 0x102030, 6);
+			if (count < 1 || count != length(tree.findMatching(root, 0x102030, 6).getFront())) testPassed = false;
+			tree.computeColorBounds();
+			tree.buildIndex();
+			if (tree.countMatching(root, 0x102030, 6) != count) testPassed = false;
+			if (tree.findNode(root, 6, 20, 20) != root.getChild(0)) testPassed = false;
+		} catch (Exception e) {ex(e); testPassed = false;}
+		return testPassed;
+	}
+	
+	/* Test the tree that shares identical subtrees */
+	private static boolean test15() {
+		boolean testPassed = true;
+		int[][] pixels = new int[64][64];
+		for (int i = 0; i < 64; ++i)
+			for (int j = 0; j < 64; ++j)
+				pixels[i][j] = ((i & 15) * (j & 15)) % 7 == 0 ? 0xff000000 : 0xffffffff;
+		int[][] noisy = randomPixels(16, 15);
+		try {
+			for (int[][] image : new int[][][] {pixels, noisy}) {
+				QuadrantTree tree = new QuadrantTree(image);
+				DagQuadrantTree dag = new DagQuadrantTree(image);
+				QTreeNode root = dag.getRoot();
+				if (!sameTree(tree.getRoot(), root) || !sameParents(root)) testPassed = false;
+				if (dag.getNodeCount() != numNodes(tree.getRoot())) testPassed = false;
+				if (dag.countMatching(root, 0, 6) != tree.countMatching(tree.getRoot(), 0, 6)) testPassed = false;
+				QTreeNode node = dag.findNode(root, 4, 37, 21);
+				if (!sameTree(node, tree.findNode(tree.getRoot(), 4, 37, 21))) testPassed = false;
+				if (node != null && (node.getParent().getParent().getParent().getParent() != root)) testPassed = false;
+			}
+			// The 16x16 blocks repeat, so only a few subtrees are stored
+			DagQuadrantTree dag = new DagQuadrantTree(pixels);
+			if (dag.getMemoryUsage() > 400 * (24 + 32) || dag.getMemoryUsage() >= dag.getFullMemoryUsage()) testPassed = false;
+		} catch (Exception e) {ex(e); testPassed = false;}
+		return testPassed;
+	}
+		
+	/* Test the cache of rendered images */
+	private static boolean test16() {
+		boolean testPassed = true;
+		try {
+			QuadrantTree tree = new QuadrantTree(randomPixels(64, 16));
+			QTreeNode root = tree.getRoot();
+			QTreeNode a = root.getChild(0), b = root.getChild(3);
+			java.awt.image.BufferedImage[] images = new java.awt.image.BufferedImage[3];
+			for (int i = 0; i < 3; ++i)
+				images[i] = new java.awt.image.BufferedImage(16, 16, java.awt.image.BufferedImage.TYPE_INT_RGB);
+			RenderCache cache = new RenderCache(2 * 16 * 16 * 4);
+			if (cache.get(root, 3) != null) testPassed = false;
+			cache.put(root, 3, images[0]);
+			cache.put(a, 3, images[1]);
+			if (cache.get(root, 3) != images[0] || cache.get(root, 4) != null) testPassed = false;
+			// The image of a is now the least recently used one
+			cache.put(b, 3, images[2]);
+			if (cache.get(a, 3) != null || cache.get(b, 3) != images[2] || cache.size() != 2) testPassed = false;
+			if (cache.recycle() != images[1] || cache.recycle() != null) testPassed = false;
+			if (cache.getHits() != 2 || cache.getMisses() != 3 || cache.getEvictions() != 1) testPassed = false;
+			if (cache.getMemoryUsage() != 2 * 16 * 16 * 4) testPassed = false;
+			// Only the images overlapping the square are removed
+			cache.invalidate(40, 40, 1);
+			if (cache.get(root, 3) != null || cache.get(b, 3) != null || cache.size() != 0) testPassed = false;
+			cache.put(root, 3, images[0]);
+			cache.put(a, 3, images[1]);
+			cache.invalidate(40, 40, 4);
+			if (cache.size() != 1 || cache.get(a, 3) != images[1]) testPassed = false;
+			cache.clear();
+			if (cache.size() != 0 || cache.getMemoryUsage() != 0) testPassed = false;
+		} catch (Exception e) {ex(e); testPassed = false;}
+		return testPassed;
+	}
+		
+	/* Test the tree whose tiles are stored on disk */
+	private static boolean test17() {
+		boolean testPassed = true;
+		int[][] pixels = randomPixels(64, 17);
+		try {
+			QuadrantTree tree = new QuadrantTree(pixels);
+			for (int tileSize : new int[] {2, 8, 64, 128}) {
+				// A budget smaller than one tile still reads every tile correctly
+				TiledPyramid pyramid = new TiledPyramid(new PixelGrid(pixels), tileSize, 200);
+				QTreeNode root = pyramid.getRoot();
+				if (!sameTree(tree.getRoot(), root) || !sameParents(root)) testPassed = false;
+				if (pyramid.getNodeCount() != numNodes(tree.getRoot())) testPassed = false;
+				if (!sameTree(pyramid.findNode(root, 5, 37, 21), tree.findNode(tree.getRoot(), 5, 37, 21))) testPassed = false;
+				if (pyramid.countMatching(root, pixels[9][3], 6) != tree.countMatching(tree.getRoot(), pixels[9][3], 6)) testPassed = false;
+				if (pyramid.getTileSize() != Math.min(tileSize, 64)) testPassed = false;
+				pyramid.close();
+			}
+			// Evicted tiles are read again, so the cache stays within its budget
+			// apart from the tile being read
+			int tileBytes = 4 * ImplicitQuadrantTree.levelStart(4), topBytes = 4 * ImplicitQuadrantTree.levelStart(4);
+			TiledPyramid pyramid = new TiledPyramid(new PixelGrid(pixels), 8, 2 * tileBytes);
+			for (int pass = 0; pass < 2; ++pass) {
+				if (length(pyramid.getPixels(pyramid.getRoot(), 6)) != 4096) testPassed = false;
+				if (pyramid.getCachedTileCount() > 3 || pyramid.getMemoryUsage() > topBytes + 3 * tileBytes) testPassed = false;
+			}
+			if (pyramid.getTileReads() < 2 * 64) testPassed = false;
+			// At 4096x4096, the largest size averaged like QuadrantTree.build
+			int[][] large = new int[4096][4096];
+			for (int[] row : large) java.util.Arrays.fill(row, 0xffc80000);
+			large[5][7] = 0xffc90000;
+			TiledPyramid largePyramid = new TiledPyramid(new PixelGrid(large));
+			if (largePyramid.getRoot().getColor() != Gui.averageColor(large, 0, 0, 4096)) testPassed = false;
+			largePyramid.close();
+			try {
+				pyramid.buildIndex();
+				testPassed = false;
+			} catch (QTreeException e) {;}
+			try {
+				pyramid.computeColorBounds();
+				testPassed = false;
+			} catch (QTreeException e) {;}
+			pyramid.close();
+			// Image files are decoded in one pass, or by regions when they have alpha
+			java.io.File file = java.io.File.createTempFile("test", ".png");
+			file.deleteOnExit();
+			for (int type : new int[] {java.awt.image.BufferedImage.TYPE_INT_RGB, java.awt.image.BufferedImage.TYPE_INT_ARGB}) {
+				java.awt.image.BufferedImage image = new java.awt.image.BufferedImage(50, 40, type);
+				int[][] padded = new int[64][64];
+				for (int y = 0; y < 40; ++y)
+					for (int x = 0; x < 50; ++x) {
+						image.setRGB(x, y, pixels[y][x] | 0xff000000);
+						padded[y][x] = pixels[y][x] | 0xff000000;
+					}
+				javax.imageio.ImageIO.write(image, "png", file);
+				pyramid = new TiledPyramid(file, 64, 16, TiledPyramid.DEFAULT_CACHE_BUDGET);
+				if (!sameTree(new QuadrantTree(padded).getRoot(), pyramid.getRoot())) testPassed = false;
+				pyramid.close();
+			}
+		} catch (Exception e) {ex(e); testPassed = false;}
+		return testPassed;
+	}
+		
+	/* Test writing trees to .qtree files and reading them back */
+	private static boolean test18() {
+		boolean testPassed = true;
+		int[][] pixels = new int[64][64];
+		for (int i = 0; i < 64; ++i)
+			for (int j = 0; j < 64; ++j)
+				pixels[i][j] = (i < 32 && j < 32) ? 0x102030 + (j & 3) : (i * j + i + j) * 2039;
+		try {
+			java.io.File file = java.io.File.createTempFile("test", ".qtree");
+			file.deleteOnExit();
+			QuadrantTree[] trees = {new QuadrantTree(pixels), new QuadrantTree(pixels, 5), new QuadrantTree(randomPixels(2, 18))};
+			for (QuadrantTree tree : trees) {
+				MappedQuadrantTree.write(tree, file);
+				MappedQuadrantTree mapped = new MappedQuadrantTree(file);
+				QTreeNode root = mapped.getRoot();
+				if (!sameTree(tree.getRoot(), root) || !sameParents(root)) testPassed = false;
+				if (mapped.getNodeCount() != numNodes(tree.getRoot())) testPassed = false;
+				if (mapped.getLeafCount() != tree.getLeafCount()) testPassed = false;
+				if (!sameTree(mapped.findNode(root, 5, 37, 21), tree.findNode(tree.getRoot(), 5, 37, 21))) testPassed = false;
+				if (mapped.countMatching(root, 0x102030, 6) != tree.countMatching(tree.getRoot(), 0x102030, 6)) testPassed = false;
+			}
+			// The compressed tree stores fewer colors
+			MappedQuadrantTree.write(trees[1], file);
+			if (file.length() >= 4 * numNodes(trees[0].getRoot())) testPassed = false;
+			try {
+				java.nio.file.Files.write(file.toPath(), new byte[30]);
+				new MappedQuadrantTree(file);
+				testPassed = false;
+			} catch (java.io.IOException e) {;}
+			// Headers that do not match the tree: wrong levels, a full tree with
+			// the size of a smaller one, and a compressed tree with a wrong rank
+			int words = (numNodes(trees[1].getRoot()) + 63) / 64, lastRank = 24 + 12 * words - 4;
+			int[][] edits = {{0, 16, 5}, {0, 12, 32, 16, 5}, {1, lastRank, 0}};
+			for (int[] edit : edits) {
+				MappedQuadrantTree.write(trees[edit[0]], file);
+				try (java.io.RandomAccessFile out = new java.io.RandomAccessFile(file, "rw")) {
+					for (int i = 1; i < edit.length; i += 2) {
+						out.seek(edit[i]);
+						out.writeInt(edit[i + 1]);
+					}
+				}
+				try {
+					new MappedQuadrantTree(file);
+					testPassed = false;
+				} catch (java.io.IOException e) {;}
+			}
+		} catch (Exception e) {ex(e); testPassed = false;}
+		return testPassed;
+	}
+		
+	/* Test queryRegion */
+	private static boolean test19() {
+		boolean testPassed = true;
+		int[][] pixels = new int[64][64];
+		for (int i = 0; i < 64; ++i)
+			for (int j = 0; j < 64; ++j)
+				pixels[i][j] = (i < 32 && j < 32) ? 0x102030 + (j & 3) : (i * j + i + j) * 2039;
+		int[][] rects = {{0, 0, 64, 64}, {5, 9, 13, 40}, {-10, 30, 20, 1}, {63, 63, 5, 5}, {64, 0, 3, 3}, {3, 3, 0, 8}};
+		try {
+			for (QuadrantTree tree : new QuadrantTree[] {new QuadrantTree(pixels), new QuadrantTree(pixels, 5)}) {
+				for (int[] rect : rects)
+					for (int level = 0; level <= 6; level += 2) {
+						// The nodes of getPixels that intersect the rectangle, in the same order
+						ListNode<QTreeNode> p = tree.queryRegion(rect[0], rect[1], rect[2], rect[3], level);
+						ListNode<QTreeNode> q = tree.getPixels(tree.getRoot(), level);
+						for (; q != null; q = q.getNext()) {
+							QTreeNode r = q.getData();
+							if (rect[2] > 0 && rect[3] > 0 && r.getx() < rect[0] + rect[2] && rect[0] < r.getx() + r.getSize()
+									&& r.gety() < rect[1] + rect[3] && rect[1] < r.gety() + r.getSize()) {
+								if (p == null || p.getData() != r) testPassed = false;
+								else p = p.getNext();
+							}
+						}
+						if (p != null) testPassed = false;
+					}
+			}
+			QuadrantTree tree = new QuadrantTree(pixels);
+			if (length(tree.queryRegion(10, 20, 16, 8, 6)) != 16 * 8) testPassed = false;
+			if (length(tree.queryRegion(10, 20, 16, 8, 4)) != 5 * 2) testPassed = false;
+			if (tree.queryRegion(100, 0, 10, 10, 6) != null) testPassed = false;
+		} catch (Exception e) {ex(e); testPassed = false;}
+		return testPassed;
+	}
+		
+	/* Test setPixel and fillRect */
+	private static boolean test20() {
+		boolean testPassed = true;
+		int[][] pixels = randomPixels(32, 20);
+		try {
+			QuadrantTree tree = new QuadrantTree(pixels);
+			RenderCache cache = new RenderCache();
+			java.awt.image.BufferedImage image = new java.awt.image.BufferedImage(1, 1, java.awt.image.BufferedImage.TYPE_INT_RGB);
+			QTreeNode root = tree.getRoot();
+			cache.put(root.getChild(1), 1, image);
+			cache.put(root.getChild(2), 1, image);
+			cache.put(root.getChild(3), 1, image);
+			tree.addRegionListener(cache::invalidate);
+			int[][] changes = {{3, 20, 1, 1, 0xff123456}, {0, 0, 5, 9, 0xffffffff}, {28, 2, 10, 3, 0xff00ff00}, 
+					{-4, 30, 40, 5, 0xff000000}, {40, 40, 3, 3, 0xffabcdef}};
+			for (int[] c : changes) {
+				if (c[2] == 1 && c[3] == 1) tree.setPixel(c[0], c[1], c[4]);
+				else tree.fillRect(c[0], c[1], c[2], c[3], c[4]);
+				for (int y = Math.max(c[1], 0); y < Math.min(c[1] + c[3], 32); ++y)
+					for (int x = Math.max(c[0], 0); x < Math.min(c[0] + c[2], 32); ++x)
+						pixels[y][x] = c[4];
+				if (!sameTree(root, new QuadrantTree(pixels).getRoot())) testPassed = false;
+				// Pixel (3,20) is in the lower left quadrant and its leaf in the upper right one
+				if (c == changes[0] && (cache.size() != 1 || cache.get(root.getChild(3), 1) != image)) testPassed = false;
+			}
+			if (!sameParents(root) || tree.getRoot() != root || cache.size() != 0) testPassed = false;
+			try {
+				new QuadrantTree(new int[32][32], 20).setPixel(1, 1, 0);
+				testPassed = false;
+			} catch (QTreeException e) {;}
+			// Views are read only, and are rejected before any sums are computed
+			CompactQuadrantTree compact = new CompactQuadrantTree(pixels);
+			if (compact.isMutable() || !tree.isMutable()) testPassed = false;
+			try {
+				compact.fillRect(0, 0, 4, 4, 0);
+				testPassed = false;
+			} catch (QTreeException e) {;}
+			// A listener may remove itself while being told about a change
+			RegionListener[] once = new RegionListener[1];
+			int[] calls = {0};
+			once[0] = (x, y, w, h) -> {calls[0]++; tree.removeRegionListener(once[0]);};
+			tree.addRegionListener(once[0]);
+			tree.setPixel(5, 5, 0xff000000);
+			tree.setPixel(6, 6, 0xff000000);
+			// Each change is reported for the pixels and for the transposed leaves
+			if (calls[0] != 2) testPassed = false;
+		} catch (Exception e) {ex(e); testPassed = false;}
+		return testPassed;
+	}
+		
+	/* Test the tree rebuilt block by block from a sequence of frames */
+	private static boolean test21() {
+		boolean testPassed = true;
+		int[][] pixels = randomPixels(64, 21);
+		try {
+			TemporalQuadrantTree tree = new TemporalQuadrantTree(pixels, 8);
+			RenderCache cache = new RenderCache();
+			tree.addRegionListener(cache::invalidate);
+			if (!sameTree(tree.getRoot(), new QuadrantTree(pixels).getRoot())) testPassed = false;
+			if (tree.update(pixels) != 0) testPassed = false;
+			// Pixel (x=10, y=3) is in block (1,0); its leaf is in block (0,1)
+			java.awt.image.BufferedImage image = new java.awt.image.BufferedImage(1, 1, java.awt.image.BufferedImage.TYPE_INT_RGB);
+			QTreeNode kept = tree.getRoot().getChild(3);
+			cache.put(kept, 1, image);
+			int[][] frame = new int[64][];
+			for (int i = 0; i < 64; ++i) frame[i] = pixels[i].clone();
+			frame[3][10] = 0xff123456;
+			if (tree.update(frame) != 2.0 / 64) testPassed = false;
+			if (tree.getRoot().getChild(3) != kept || cache.size() != 1) testPassed = false;
+			if (!sameTree(tree.getRoot(), new QuadrantTree(frame).getRoot())) testPassed = false;
+			// Changing the whole frame rebuilds every block
+			int[][] other = randomPixels(64, 22);
+			if (tree.update(other) != 1 || !sameTree(tree.getRoot(), new QuadrantTree(other).getRoot())) testPassed = false;
+			if (!sameParents(tree.getRoot()) || tree.getFrameCount() != 4) testPassed = false;
+			double[] ratios = tree.getRebuildRatios();
+			if (ratios.length != 4 || ratios[0] != 1 || ratios[1] != 0 || ratios[3] != 1) testPassed = false;
+			// Edits between frames go to the sums of the tree and to the last frame
+			int[] calls = {0};
+			tree.addRegionListener((x, y, w, h) -> calls[0]++);
+			tree.setPixel(10, 20, 0xff00ff00);
+			tree.fillRect(30, 40, 50, 5, 0xff0000ff);
+			other[20][10] = 0xff00ff00;
+			for (int y = 40; y < 45; ++y) java.util.Arrays.fill(other[y], 30, 64, 0xff0000ff);
+			if (!sameTree(tree.getRoot(), new QuadrantTree(other).getRoot())) testPassed = false;
+			if (calls[0] != 4 || tree.update(other) != 0) testPassed = false;
+			// Blocks changed in one frame are reported once
+			calls[0] = 0;
+			other[1][2] = 0xff000000;
+			other[60][50] = 0xff000000;
+			// Pixel (2,1) is in a block on the diagonal, (50,60) in blocks (6,7) and (7,6)
+			if (tree.update(other) != 3.0 / 64 || calls[0] != 1) testPassed = false;
+			tree.setPixel(63, 0, 0xffffffff);
+			other[0][63] = 0xffffffff;
+			if (!sameTree(tree.getRoot(), new QuadrantTree(other).getRoot())) testPassed = false;
+			// A block as large as the frame
+			TemporalQuadrantTree whole = new TemporalQuadrantTree(pixels, 128);
+			if (whole.getBlockSize() != 64 || whole.update(frame) != 1) testPassed = false;
+			if (!sameTree(whole.getRoot(), new QuadrantTree(frame).getRoot())) testPassed = false;
+			try {
+				tree.update(new int[32][32]);
+				testPassed = false;
+			} catch (QTreeException e) {;}
+		} catch (Exception e) {ex(e); testPassed = false;}
+		return testPassed;
+	}
+		
+	/* Test the batch color kernels against Gui */
+	private static boolean test22() {
+		boolean testPassed = true;
+		java.util.Random random = new java.util.Random(22);
+		try {
+			// Channel differences around the tolerance, with and without alpha
+			int[] channels = {0, 1, 14, 15, 16, 127, 128, 240, 241, 254, 255};
+			int[] colors = new int[4000];
+			int n = 0;
+			for (int a : channels)
+				for (int b : channels) {
+					colors[n++] = a << 16 | b << 8 | a;
+					colors[n++] = 0xff000000 | b << 16 | a << 8 | b;
+				}
+			while (n < colors.length) colors[n++] = random.nextInt();
+			for (int i = 0; i < colors.length; i += 7)
+				for (int j = 0; j < colors.length; j += 3)
+					if (ColorKernels.similarColor(colors[i], colors[j]) != Gui.similarColor(colors[i], colors[j])) testPassed = false;
+			int[] indices = new int[colors.length];
+			for (int i = 0; i < 300; ++i) {
+				int count = 0, from = i, to = colors.length - 2 * i;
+				for (int j = from; j < to; ++j)
+					if (Gui.similarColor(colors[j], colors[i])) ++count;
+				if (ColorKernels.countSimilar(colors, from, to, colors[i]) != count) testPassed = false;
+				if (ColorKernels.findSimilar(colors, from, to, colors[i], indices) != count) testPassed = false;
+				for (int k = 0; k < count; ++k)
+					if (!Gui.similarColor(colors[indices[k]], colors[i]) || (k > 0 && indices[k] <= indices[k - 1])) testPassed = false;
+			}
+			// Averages over regions wider than a chunk, and of white pixels
+			int[][] pixels = randomPixels(1024, 22);
+			int[][] white = new int[1024][1024];
+			for (int[] row : white) java.util.Arrays.fill(row, 0xffffffff);
+			int[][] regions = {{0, 0, 1024}, {3, 5, 600}, {100, 7, 257}, {1000, 1000, 24}, {9, 9, 1}, {0, 512, 512}};
+			for (int[] g : regions)
+				if (ColorKernels.averageColor(pixels, g[0], g[1], g[2]) != Gui.averageColor(pixels, g[0], g[1], g[2])
+						|| ColorKernels.averageColor(white, g[0], g[1], g[2]) != Gui.averageColor(white, g[0], g[1], g[2])) testPassed = false;
+			// The batch scan of ImplicitQuadrantTree counts what QuadrantTree counts
+			int[][] small = randomPixels(64, 23);
+			ImplicitQuadrantTree implicit = new ImplicitQuadrantTree(small);
+			QuadrantTree tree = new QuadrantTree(small);
+			for (int level = 0; level <= 7; ++level) {
+				int color = small[level][level];
+				if (implicit.countMatching(implicit.getRoot(), color, level) != tree.countMatching(tree.getRoot(), color, level)
+						|| implicit.countMatching(implicit.getRoot().getChild(2), color, level) != tree.countMatching(tree.getRoot().getChild(2), color, level)) testPassed = false;
+				Duple found = implicit.findMatching(implicit.getRoot().getChild(2), color, level);
+				Duple expected = tree.findMatching(tree.getRoot().getChild(2), color, level);
+				if (found.getCount() != expected.getCount() || !sameList(found.getFront(), expected.getFront())) testPassed = false;
+			}
+			// Many matches, over several batches of the scan
+			int[][] few = new int[128][128];
+			for (int[] row : few) for (int i = 0; i < 128; ++i) row[i] = random.nextInt(4) * 0x101010;
+			implicit = new ImplicitQuadrantTree(few);
+			tree = new QuadrantTree(few);
+			for (int level : new int[] {3, 7}) {
+				Duple found = implicit.findMatching(implicit.getRoot(), 0x101010, level);
+				Duple expected = tree.findMatching(tree.getRoot(), 0x101010, level);
+				if (found.getCount() < 1000 && level == 7 || !sameList(found.getFront(), expected.getFront())) testPassed = false;
+			}
+		} catch (Exception e) {ex(e); testPassed = false;}
+		return testPassed;
+	}
+		
+	/* Test the parallel searches */
+	private static boolean test23() {
+		boolean testPassed = true;
+		java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(4);
+		try {
+			int[][] pixels = randomPixels(256, 23);
+			for (int y = 0; y < 128; ++y)
+				for (int x = 0; x < 256; ++x) pixels[y][x] = 0xff000000 | ((x / 32) * 8) << 16 | (y / 16) << 3;
+			QuadrantTree[] trees = {new QuadrantTree(pixels), new QuadrantTree(pixels, 10), new DagQuadrantTree(pixels),
+					new QuadrantTree(pixels)};
+			trees[3].computeColorBounds();
+			for (QuadrantTree tree : trees) {
+				QTreeNode root = tree.getRoot();
+				for (int level = 0; level <= 9; ++level) {
+					if (!sameList(tree.getPixels(root, level), tree.getPixels(root, level, pool))) testPassed = false;
+					for (int k = 0; k < 5; ++k) {
+						int color = pixels[k * 50][k * 30];
+						Duple sequential = tree.findMatching(root, color, level);
+						Duple parallel = tree.findMatching(root, color, level, pool);
+						if (sequential.getCount() != parallel.getCount()
+								|| !sameList(sequential.getFront(), parallel.getFront())) testPassed = false;
+					}
+				}
+				Duple none = tree.findMatching(root.getChild(0), 0x00ffffff, 9, pool);
+				if (none.getCount() != 0 || none.getFront() != null) testPassed = false;
+			}
+			if (trees[0].getPixels(null, 3, pool).getData() != null) testPassed = false;
+		} catch (Exception e) {ex(e); testPassed = false;}
+		pool.shutdown();
+		return testPassed;
+	}
+		
+	/* Test renderers drawing concurrently */
+	private static boolean test24() {
+		boolean testPassed = true;
+		java.util.concurrent.ExecutorService pool = java.util.concurrent.Executors.newFixedThreadPool(4);
+		try {
+			int[][][] images = {randomPixels(512, 24), randomPixels(1024, 25)};
+			QuadTreeRenderer[] renderers = new QuadTreeRenderer[2];
+			for (int k = 0; k < 2; ++k) renderers[k] = new QuadTreeRenderer(new QuadrantTree(images[k]));
+			// Every canvas pixel shows the node of the final level at its position
+			java.util.List<java.util.concurrent.Future<Boolean>> results = new java.util.ArrayList<>();
+			for (int t = 0; t < 8; ++t) {
+				final QuadTreeRenderer renderer = renderers[t % 2];
+				final int resolution = 8 + t % 2 + t / 4;
+				results.add(pool.submit(() -> {
+					synchronized (renderer) {
+						java.awt.image.BufferedImage image = renderer.draw(resolution, 700, 300, null);
+						QuadrantTree tree = renderer.getTree();
+						QTreeNode start = renderer.getStartingNode();
+						int scale = start.getSize() / 512;
+						int level = Math.min(resolution, QuadTreeRenderer.FINAL_RESOLUTION);
+						for (int j = 0; j < 512; j += 37)
+							for (int i = 0; i < 512; i += 41) {
+								QTreeNode node = tree.findNode(start, level, start.getx() + i * scale, start.gety() + j * scale);
+								if ((image.getRGB(i, j) & 0xffffff) != (node.getColor() & 0xffffff)) return false;
+							}
+						return renderer.getCanvas() == image;
+					}
+				}));
+			}
+			for (java.util.concurrent.Future<Boolean> result : results)
+				if (!result.get()) testPassed = false;
+			// Zooming into the quadrant of (700,300) of the larger image
+			renderers[1].draw(10, 700, 300, null);
+			QTreeNode start = renderers[1].getStartingNode();
+			if (start.getSize() != 512 || start.getx() != 512 || start.gety() != 0) testPassed = false;
+			if (renderers[1].getMaxResolution() != 10 || renderers[0].getMaxResolution() != 9) testPassed = false;
+			// Drawing again is a cache hit, and marking does not change the cached image
+			java.awt.image.BufferedImage image = renderers[0].draw(9, 0, 0, null);
+			int before = image.getRGB(5, 5);
+			Duple marked = renderers[0].drawMatching(9, 5, 5, null);
+			if (renderers[0].draw(9, 0, 0, null) != image || image.getRGB(5, 5) != before) testPassed = false;
+			if (marked == null || marked.getCount() < 1) testPassed = false;
+			if (renderers[0].getCache().getHits() < 2) testPassed = false;
+			// A viewport that is not a quadrant, partly outside the image
+			java.awt.image.BufferedImage view = renderers[0].drawViewport(300, 100, 512);
+			if ((view.getRGB(0, 0) & 0xffffff) != (images[0][300][100] & 0xffffff) || view.getRGB(300, 0) != 0xff000000) testPassed = false;
+		} catch (Exception e) {ex(e); testPassed = false;}
+		pool.shutdown();
+		return testPassed;
+	}
+		
+	/* Test level images and viewports */
+	private static boolean test25() {
+		boolean testPassed = true;
+		try {
+			int[][] pixels = randomPixels(64, 25);
+			for (int y = 0; y < 32; ++y)
+				for (int x = 0; x < 32; ++x) pixels[y][x] = 0xff204060;
+			QuadrantTree[] trees = {new QuadrantTree(pixels), new QuadrantTree(pixels, 5)};
+			for (QuadrantTree tree : trees) {
+				QuadTreeRenderer renderer = new QuadTreeRenderer(tree, new RenderCache(0));
+				for (int level = 0; level <= 6; ++level) {
+					java.awt.image.BufferedImage image = renderer.drawLevel(tree.getRoot(), level);
+					int scale = 64 >> level;
+					if (image.getWidth() != 1 << level) testPassed = false;
+					for (int j = 0; j < image.getHeight(); ++j)
+						for (int i = 0; i < image.getWidth(); ++i)
+							if ((image.getRGB(i, j) & 0xffffff) != (tree.findNode(tree.getRoot(), level, i * scale, j * scale).getColor() & 0xffffff)) testPassed = false;
+				}
+				// A level image of a quadrant, and a viewport reaching past the canvas
+				if (renderer.drawLevel(tree.getRoot().getChild(3), 5).getWidth() != 32) testPassed = false;
+				renderer.drawViewport(-600, -448, 512);
+				try {
+					renderer.drawLevel(tree.getRoot(), 7);
+					testPassed = false;
+				} catch (QTreeException e) {;}
+			}
+			// Inputs whose output files would overwrite each other are not rendered
+			java.io.File a = new java.io.File("in/a.png"), b = new java.io.File("in/b.png");
+			java.util.List<java.io.File> inputs = java.util.Arrays.asList(a, new java.io.File("in/a.jpg"), b, new java.io.File("in/../in/b.gif"));
+			if (!new BatchRenderer().claimOutputs(inputs).equals(java.util.Arrays.asList(a, b))) testPassed = false;
+		} catch (Exception e) {ex(e); testPassed = false;}
+		return testPassed;
+	}
+		
+	/* Test the HTTP tile server */
+	private static boolean test26() {
+		boolean testPassed = true;
+		TileServer server = null;
+		try {
+			QuadrantTree tree = new QuadrantTree(randomPixels(64, 26));
+			server = new TileServer(new QuadTreeRenderer(tree, new RenderCache(0)), 16, 1 << 20);
+			server.start(0);
+			String url = "http://localhost:" + server.getPort();
+			// Level 2 has 16x16 tiles of 16x16 leaves, level 6 single leaves scaled up
+			int[][] tiles = {{2, 1, 3}, {0, 0, 0}, {6, 63, 5}, {2, 1, 3}};
+			for (int[] t : tiles) {
+				java.net.HttpURLConnection connection = (java.net.HttpURLConnection) new java.net.URL(url + "/" + t[0] + "/" + t[1] + "/" + t[2] + ".png").openConnection();
+				if (connection.getResponseCode() != 200 || !"image/png".equals(connection.getContentType())) testPassed = false;
+				java.awt.image.BufferedImage image = javax.imageio.ImageIO.read(connection.getInputStream());
+				int span = 64 >> t[0], level = Math.min(6, t[0] + 4);
+				for (int j = 0; j < 16; ++j)
+					for (int i = 0; i < 16; ++i) {
+						QTreeNode node = tree.findNode(tree.getRoot(), level, t[1] * span + i * span / 16, t[2] * span + j * span / 16);
+						if ((image.getRGB(i, j) & 0xffffff) != (node.getColor() & 0xffffff)) testPassed = false;
+					}
+			}
+			if (server.getCacheHits() != 1 || server.getCacheMisses() != 3) testPassed = false;
+			// Tiles outside the image and below the leaves, and bad paths
+			String[] missing = {"/2/4/0.png", "/7/0/0.png", "/1/0.png", "/x"};
+			for (String path : missing)
+				if (((java.net.HttpURLConnection) new java.net.URL(url + path).openConnection()).getResponseCode() != 404) testPassed = false;
+			// A change removes the tiles over it
+			tree.setPixel(20, 50, 0xff000000);
+			server.getTile(2, 1, 3);
+			if (server.getCacheMisses() != 4) testPassed = false;
+			java.net.HttpURLConnection metrics = (java.net.HttpURLConnection) new java.net.URL(url + "/metrics").openConnection();
+			String text = new String(metrics.getInputStream().readAllBytes(), "UTF-8");
+			if (!text.startsWith("requests ") || !text.contains("cache_misses 4\n") || !text.contains("latency_p99_us")) testPassed = false;
+			// A latency is recorded after its response is sent
+			for (int i = 0; i < 100 && server.getRequestCount() < 9; ++i) Thread.sleep(10);
+			if (server.getLatencyPercentile(0.5) <= 0 || server.getRequestCount() != 9) testPassed = false;
+		} catch (Exception e) {ex(e); testPassed = false;}
+		finally {
+			if (server != null) server.stop(0);
+		}
+		return testPassed;
+	}
 		
 	public static void main(String[] args) {
 		// The first two tests are for class QTreeNode
@@ -160,6 +941,106 @@ public class TestQuadrant {
 			if (test6()) System.out.println("Test 6 passed");
 			else System.out.println("Test 6 failed");
 		} catch (Exception e) {ex(e); System.out.println("Test 6 failed");}	
+		
+		try {
+			if (test7()) System.out.println("Test 7 passed");
+			else System.out.println("Test 7 failed");
+		} catch (Exception e) {ex(e); System.out.println("Test 7 failed");}	
+		
+		try {
+			if (test8()) System.out.println("Test 8 passed");
+			else System.out.println("Test 8 failed");
+		} catch (Exception e) {ex(e); System.out.println("Test 8 failed");}	
+		
+		try {
+			if (test9()) System.out.println("Test 9 passed");
+			else System.out.println("Test 9 failed");
+		} catch (Exception e) {ex(e); System.out.println("Test 9 failed");}	
+		
+		try {
+			if (test10()) System.out.println("Test 10 passed");
+			else System.out.println("Test 10 failed");
+		} catch (Exception e) {ex(e); System.out.println("Test 10 failed");}	
+		
+		try {
+			if (test11()) System.out.println("Test 11 passed");
+			else System.out.println("Test 11 failed");
+		} catch (Exception e) {ex(e); System.out.println("Test 11 failed");}	
+		
+		try {
+			if (test12()) System.out.println("Test 12 passed");
+			else System.out.println("Test 12 failed");
+		} catch (Exception e) {ex(e); System.out.println("Test 12 failed");}	
+		
+		try {
+			if (test13()) System.out.println("Test 13 passed");
+			else System.out.println("Test 13 failed");
+		} catch (Exception e) {ex(e); System.out.println("Test 13 failed");}	
+		
+		try {
+			if (test14()) System.out.println("Test 14 passed");
+			else System.out.println("Test 14 failed");
+		} catch (Exception e) {ex(e); System.out.println("Test 14 failed");}	
+		
+		try {
+			if (test15()) System.out.println("Test 15 passed");
+			else System.out.println("Test 15 failed");
+		} catch (Exception e) {ex(e); System.out.println("Test 15 failed");}	
+		
+		try {
+			if (test16()) System.out.println("Test 16 passed");
+			else System.out.println("Test 16 failed");
+		} catch (Exception e) {ex(e); System.out.println("Test 16 failed");}	
+		
+		try {
+			if (test17()) System.out.println("Test 17 passed");
+			else System.out.println("Test 17 failed");
+		} catch (Exception e) {ex(e); System.out.println("Test 17 failed");}	
+		
+		try {
+			if (test18()) System.out.println("Test 18 passed");
+			else System.out.println("Test 18 failed");
+		} catch (Exception e) {ex(e); System.out.println("Test 18 failed");}	
+		
+		try {
+			if (test19()) System.out.println("Test 19 passed");
+			else System.out.println("Test 19 failed");
+		} catch (Exception e) {ex(e); System.out.println("Test 19 failed");}	
+		
+		try {
+			if (test20()) System.out.println("Test 20 passed");
+			else System.out.println("Test 20 failed");
+		} catch (Exception e) {ex(e); System.out.println("Test 20 failed");}	
+		
+		try {
+			if (test21()) System.out.println("Test 21 passed");
+			else System.out.println("Test 21 failed");
+		} catch (Exception e) {ex(e); System.out.println("Test 21 failed");}	
+		
+		try {
+			if (test22()) System.out.println("Test 22 passed");
+			else System.out.println("Test 22 failed");
+		} catch (Exception e) {ex(e); System.out.println("Test 22 failed");}	
+		
+		try {
+			if (test23()) System.out.println("Test 23 passed");
+			else System.out.println("Test 23 failed");
+		} catch (Exception e) {ex(e); System.out.println("Test 23 failed");}	
+		
+		try {
+			if (test24()) System.out.println("Test 24 passed");
+			else System.out.println("Test 24 failed");
+		} catch (Exception e) {ex(e); System.out.println("Test 24 failed");}	
+		
+		try {
+			if (test25()) System.out.println("Test 25 passed");
+			else System.out.println("Test 25 failed");
+		} catch (Exception e) {ex(e); System.out.println("Test 25 failed");}	
+		
+		try {
+			if (test26()) System.out.println("Test 26 passed");
+			else System.out.println("Test 26 failed");
+		} catch (Exception e) {ex(e); System.out.println("Test 26 failed");}	
 													
 	}
 	
@@ -190,6 +1071,49 @@ public class TestQuadrant {
 		}
 	}
 	
+	/* Returns true if the trees rooted at a and b have the same shape and store
+	   the same coordinates, sizes and colors */
+	private static boolean sameTree(QTreeNode a, QTreeNode b) {
+		if (a == null || b == null) return a == b;
+		if (a.getx() != b.getx() || a.gety() != b.gety() || a.getSize() != b.getSize()
+				|| a.getColor() != b.getColor() || a.isLeaf() != b.isLeaf()) return false;
+		if (a.isLeaf()) return true;
+		for (int i = 0; i < 4; ++i)
+			if (!sameTree(a.getChild(i), b.getChild(i))) return false;
+		return true;
+	}
+	
+	/* Returns true if every child in the tree rooted at r has r as its parent */
+	private static boolean sameParents(QTreeNode r) {
+		if (r.isLeaf()) return true;
+		for (int i = 0; i < 4; ++i) {
+			QTreeNode child = r.getChild(i);
+			if (child.getParent() != r || !sameParents(child)) return false;
+		}
+		return true;
+	}
+	
+	/* Create a size x size image of opaque pseudo-random colors */
+	private static int[][] randomPixels(int size, long seed) {
+		java.util.Random random = new java.util.Random(seed);
+		int[][] pixels = new int[size][size];
+		for (int i = 0; i < size; ++i)
+			for (int j = 0; j < size; ++j)
+				pixels[i][j] = 0xff000000 | random.nextInt(0x1000000);
+		return pixels;
+	}
+	
+	/* Returns true if both lists hold the same nodes in the same order */
+	private static boolean sameList(ListNode<QTreeNode> a, ListNode<QTreeNode> b) {
+		while (a != null && b != null) {
+			QTreeNode p = a.getData(), q = b.getData();
+			if (p.getx() != q.getx() || p.gety() != q.gety() || p.getSize() != q.getSize() || p.getColor() != q.getColor()) return false;
+			a = a.getNext();
+			b = b.getNext();
+		}
+		return a == b;
+	}
+	
 	/* Returns the length of the given list */
 	private static int length(ListNode<QTreeNode> list) {
 		int c = 0;
@@ -0,0 +1,460 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.imageio.ImageIO;
+
+/**
+ * Serves the levels of a quadrant tree as PNG tiles over HTTP on the local
+ * machine, so a large image can be browsed like a map with a viewer such as
+ * Leaflet or OpenLayers.
+ *
+ * The tile /level/x/y.png shows the node found by findNode at the given level
+ * below the root, numbered from the upper left corner: level 0 is the whole
+ * image in one tile, and level n has 2^n by 2^n tiles. Every tile has the same
+ * number of pixels, each showing one node of the level below the tile, so the
+ * deepest levels show the leaves scaled up. A tile outside the image or below
+ * the leaves is answered with 404.
+ *
+ * Encoded tiles are kept in a least recently used cache of at most a given
+ * number of bytes, and the tiles over a changed region of the tree are
+ * removed from it. Requests are served concurrently, on virtual threads when
+ * the JDK has them and otherwise on a pool of daemon threads. /metrics
+ * reports the number of requests, the cache hits and misses and the request
+ * latencies as plain text.
+ *
+ * @author adamm
+ */
+public class TileServer {
+
+	/** Width and height of a tile in pixels. */
+	public static final int DEFAULT_TILE_SIZE = 256;
+
+	/** Default budget of the tile cache: 16 MB of PNG data. */
+	public static final long DEFAULT_BUDGET = 16L * 1024 * 1024;
+
+	private static final Pattern TILE = Pattern.compile("/(\\d{1,2})/(\\d{1,9})/(\\d{1,9})\\.png");
+	private static final int BUCKETS = 40;   // Latency buckets of powers of two microseconds
+
+	private QuadTreeRenderer renderer;
+	private int tileSize;
+	private TileCache tiles;
+	private RegionListener listener;
+	private HttpServer server;
+	private ExecutorService executor;
+	private boolean virtualThreads;
+
+	private AtomicLong requests = new AtomicLong(), errors = new AtomicLong();
+	private AtomicLong totalLatency = new AtomicLong(), maxLatency = new AtomicLong();
+	private AtomicLongArray latencies = new AtomicLongArray(BUCKETS);
+
+	/**
+	 * Constructs a TileServer of the tree of the given renderer, with tiles of
+	 * the default size and a cache of the default budget.
+	 *
+	 * @param theRenderer The renderer of the tree to serve.
+	 */
+	public TileServer(QuadTreeRenderer theRenderer) {
+		this(theRenderer, DEFAULT_TILE_SIZE, DEFAULT_BUDGET);
+	}
+
+	/**
+	 * Constructs a TileServer of the tree of the given renderer.
+	 *
+	 * @param theRenderer The renderer of the tree to serve.
+	 * @param theTileSize The width and height of a tile, a power of two.
+	 * @param theBudget   The largest number of bytes of encoded tiles cached.
+	 */
+	public TileServer(QuadTreeRenderer theRenderer, int theTileSize, long theBudget) {
+		if (theTileSize < 1 || Integer.bitCount(theTileSize) != 1) {
+			throw new QTreeException("Invalid tile size");
+		}
+		if (theBudget < 0) {
+			throw new QTreeException("Invalid budget");
+		}
+		this.renderer = theRenderer;
+		this.tileSize = theTileSize;
+		this.tiles = new TileCache(theBudget);
+		this.listener = tiles::invalidate;
+	}
+
+	/**
+	 * Serves the tiles of an image on the local machine until the program is
+	 * stopped.
+	 *
+	 * @param args The image file or .qtree file, and optionally the port, by
+	 *             default 8080.
+	 * @throws IOException if the image cannot be read or the port is in use.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1 || args.length > 2) {
+			System.out.println("Usage: java TileServer image [port]");
+			return;
+		}
+		System.setProperty("java.awt.headless", "true");
+		// Tiles are cached encoded, so the renderer keeps no images
+		QuadTreeRenderer renderer = QuadTreeRenderer.open(new File(args[0]), 0, new RenderCache(0));
+		TileServer server = new TileServer(renderer);
+		server.start(args.length > 1 ? Integer.parseInt(args[1]) : 8080);
+		int levels = Integer.numberOfTrailingZeros(renderer.getTree().getRoot().getSize());
+		System.out.println("Serving levels 0 to " + levels + " of " + args[0] + " at http://localhost:"
+				+ server.getPort() + "/{level}/{x}/{y}.png" + (server.usesVirtualThreads() ? " on virtual threads" : ""));
+	}
+
+	/**
+	 * Starts serving on the loopback address.
+	 *
+	 * @param port The port, or 0 for any free port.
+	 * @throws IOException if the server cannot be bound to the port.
+	 */
+	public synchronized void start(int port) throws IOException {
+		if (server != null) {
+			throw new QTreeException("Server already started");
+		}
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/", this::handle);
+		executor = newExecutor();
+		server.setExecutor(executor);
+		renderer.getTree().addRegionListener(listener);
+		server.start();
+	}
+
+	/**
+	 * Stops serving, waiting at most the given number of seconds for the
+	 * requests being served.
+	 *
+	 * @param delay The longest wait, in seconds.
+	 */
+	public synchronized void stop(int delay) {
+		if (server == null) {
+			return;
+		}
+		server.stop(delay);
+		executor.shutdown();
+		renderer.getTree().removeRegionListener(listener);
+		server = null;
+	}
+
+	/**
+	 * Gets the port the server listens on.
+	 *
+	 * @return The port, or -1 if the server is not started.
+	 */
+	public synchronized int getPort() {
+		return (server == null) ? -1 : server.getAddress().getPort();
+	}
+
+	/**
+	 * Checks if requests are served on virtual threads, which the JDK has from
+	 * version 21 on.
+	 *
+	 * @return True if the server uses virtual threads, otherwise false.
+	 */
+	public synchronized boolean usesVirtualThreads() {
+		return this.virtualThreads;
+	}
+
+	/**
+	 * Creates the executor running the requests: one virtual thread per
+	 * request if the JDK has them, otherwise a cached pool of daemon threads.
+	 * The method is looked up by reflection so the class builds on older JDKs.
+	 *
+	 * @return The executor.
+	 */
+	private ExecutorService newExecutor() {
+		try {
+			ExecutorService virtual = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+					.invoke(null);
+			virtualThreads = true;
+			return virtual;
+		} catch (ReflectiveOperationException e) {
+			virtualThreads = false;
+			return Executors.newCachedThreadPool(task -> {
+				Thread thread = new Thread(task, "Tile server");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	/**
+	 * Encodes a tile as a PNG image, taking it from the cache if it was encoded
+	 * before.
+	 *
+	 * @param level The level of the tile, 0 for the whole image.
+	 * @param x     The column of the tile at its level.
+	 * @param y     The row of the tile at its level.
+	 * @return The PNG data, which must not be changed, or null if there is no
+	 *         such tile.
+	 * @throws IOException if the tile cannot be encoded.
+	 */
+	public byte[] getTile(int level, int x, int y) throws IOException {
+		QTreeNode root = renderer.getTree().getRoot();
+		if (level < 0 || level > Integer.numberOfTrailingZeros(root.getSize())) {
+			return null;
+		}
+		int count = 1 << level, span = root.getSize() >> level;
+		if (x < 0 || y < 0 || x >= count || y >= count) {
+			return null;
+		}
+		long key = ((long) level << 58) | ((long) x << 29) | y;
+		byte[] png = tiles.get(key);
+		if (png != null) {
+			return png;
+		}
+
+		// The node is a leaf above the level if the region is uniform, so the
+		// tile is then one color
+		long generation = tiles.getGeneration();
+		QTreeNode node = renderer.getTree().findNode(root, level, root.getx() + x * span, root.gety() + y * span);
+		BufferedImage image = renderer.drawTile(node, tileSize);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		if (!ImageIO.write(image, "png", bytes)) {
+			throw new IOException("No PNG writer");
+		}
+		png = bytes.toByteArray();
+		tiles.put(key, png, generation);
+		return png;
+	}
+
+	/**
+	 * Answers one request with a tile, the metrics or an error, and records
+	 * its latency.
+	 *
+	 * @param exchange The request and its response.
+	 */
+	private void handle(HttpExchange exchange) {
+		long start = System.nanoTime();
+		try {
+			String path = exchange.getRequestURI().getPath();
+			Matcher matcher = TILE.matcher(path);
+			if (!exchange.getRequestMethod().equals("GET")) {
+				send(exchange, 405, "text/plain", "Method not allowed\n".getBytes(StandardCharsets.UTF_8));
+			} else if (path.equals("/metrics")) {
+				send(exchange, 200, "text/plain", getMetrics().getBytes(StandardCharsets.UTF_8));
+			} else if (matcher.matches()) {
+				byte[] png = getTile(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)),
+						Integer.parseInt(matcher.group(3)));
+				if (png == null) {
+					send(exchange, 404, "text/plain", "No such tile\n".getBytes(StandardCharsets.UTF_8));
+				} else {
+					send(exchange, 200, "image/png", png);
+				}
+			} else {
+				send(exchange, 404, "text/plain", "Not found\n".getBytes(StandardCharsets.UTF_8));
+			}
+		} catch (Exception e) {
+			errors.incrementAndGet();
+			try {
+				send(exchange, 500, "text/plain", (e + "\n").getBytes(StandardCharsets.UTF_8));
+			} catch (IOException e1) {
+				// The client is gone
+			}
+		} finally {
+			exchange.close();
+			record(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Sends a complete response.
+	 *
+	 * @param exchange The request and its response.
+	 * @param status   The HTTP status code.
+	 * @param type     The content type.
+	 * @param body     The body.
+	 * @throws IOException if the response cannot be sent.
+	 */
+	private static void send(HttpExchange exchange, int status, String type, byte[] body) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", type);
+		if (type.equals("image/png")) {
+			exchange.getResponseHeaders().set("Cache-Control", "max-age=60");
+		}
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	/**
+	 * Adds the latency of a request to the histogram.
+	 *
+	 * @param nanos The time taken to answer the request, in nanoseconds.
+	 */
+	private void record(long nanos) {
+		long micros = nanos / 1000;
+		requests.incrementAndGet();
+		totalLatency.addAndGet(micros);
+		maxLatency.accumulateAndGet(micros, Math::max);
+		// Bucket i holds the latencies below 2^i microseconds and not below 2^(i-1)
+		latencies.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+	}
+
+	/**
+	 * Estimates a percentile of the request latencies from the histogram, as
+	 * the upper bound of the bucket that holds it, or the largest latency if
+	 * that is lower.
+	 *
+	 * @param fraction The percentile as a fraction, such as 0.99.
+	 * @return The latency, in microseconds, at most twice the true one, or 0
+	 *         if no request was served.
+	 */
+	public long getLatencyPercentile(double fraction) {
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = latencies.get(i);
+			total += counts[i];
+		}
+		long rank = (long) Math.ceil(fraction * total), seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank && seen > 0) {
+				return Math.min(1L << i, maxLatency.get());
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Gets the number of requests answered, including errors.
+	 *
+	 * @return The number of requests.
+	 */
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * Gets the number of tiles found in the cache.
+	 *
+	 * @return The number of hits.
+	 */
+	public int getCacheHits() {
+		return tiles.getHits();
+	}
+
+	/**
+	 * Gets the number of tiles that had to be encoded.
+	 *
+	 * @return The number of misses.
+	 */
+	public int getCacheMisses() {
+		return tiles.getMisses();
+	}
+
+	/**
+	 * Describes the requests served so far, one metric per line, as served at
+	 * /metrics. Latencies are in microseconds.
+	 *
+	 * @return The metrics.
+	 */
+	public String getMetrics() {
+		long count = requests.get();
+		return "requests " + count + "\n"
+				+ "errors " + errors.get() + "\n"
+				+ "cache_hits " + tiles.getHits() + "\n"
+				+ "cache_misses " + tiles.getMisses() + "\n"
+				+ "cache_tiles " + tiles.size() + "\n"
+				+ "cache_bytes " + tiles.getMemoryUsage() + "\n"
+				+ "latency_mean_us " + (count == 0 ? 0 : totalLatency.get() / count) + "\n"
+				+ "latency_p50_us " + getLatencyPercentile(0.5) + "\n"
+				+ "latency_p90_us " + getLatencyPercentile(0.9) + "\n"
+				+ "latency_p99_us " + getLatencyPercentile(0.99) + "\n"
+				+ "latency_max_us " + maxLatency.get() + "\n";
+	}
+
+	/**
+	 * A cache of encoded tiles, like RenderCache but sized by the bytes of PNG
+	 * data. A tile encoded while its region changed is not stored, since it may
+	 * show pixels from before the change.
+	 */
+	private class TileCache {
+
+		private LinkedHashMap<Long, byte[]> pngs = new LinkedHashMap<>(16, 0.75f, true);
+		private long budget, used, generation;
+		private int hits, misses;
+
+		TileCache(long theBudget) {
+			this.budget = theBudget;
+		}
+
+		synchronized byte[] get(long key) {
+			byte[] png = pngs.get(key);
+			if (png == null) {
+				misses++;
+			} else {
+				hits++;
+			}
+			return png;
+		}
+
+		synchronized void put(long key, byte[] png, long theGeneration) {
+			if (png.length > budget || theGeneration != generation) {
+				return;
+			}
+			byte[] old = pngs.put(key, png);
+			if (old != null) {
+				used -= old.length;
+			}
+			used += png.length;
+			Iterator<byte[]> eldest = pngs.values().iterator();
+			while (used > budget) {
+				used -= eldest.next().length;
+				eldest.remove();
+			}
+		}
+
+		synchronized void invalidate(int x, int y, int w, int h) {
+			generation++;
+			QTreeNode root = renderer.getTree().getRoot();
+			Iterator<Map.Entry<Long, byte[]>> entries = pngs.entrySet().iterator();
+			while (entries.hasNext()) {
+				Map.Entry<Long, byte[]> entry = entries.next();
+				long key = entry.getKey();
+				int span = root.getSize() >> (int) (key >>> 58);
+				int left = root.getx() + (int) ((key >>> 29) & 0x1FFFFFFF) * span;
+				int top = root.gety() + (int) (key & 0x1FFFFFFF) * span;
+				if (left < x + w && x < left + span && top < y + h && y < top + span) {
+					used -= entry.getValue().length;
+					entries.remove();
+				}
+			}
+		}
+
+		synchronized long getGeneration() {
+			return generation;
+		}
+
+		synchronized int size() {
+			return pngs.size();
+		}
+
+		synchronized long getMemoryUsage() {
+			return used;
+		}
+
+		synchronized int getHits() {
+			return hits;
+		}
+
+		synchronized int getMisses() {
+			return misses;
+		}
+	}
+}
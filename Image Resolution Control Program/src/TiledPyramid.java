@@ -0,0 +1,782 @@
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * A quadrant tree of an image too large to keep in memory. The image is cut
+ * into square tiles; the subtree of every tile is stored on disk as the colors
+ * of its nodes in breadth-first order, like ImplicitQuadrantTree, and the
+ * levels above the tiles are kept in memory. The colors of those upper levels
+ * are computed from exact 64-bit channel sums, so images of any size are
+ * averaged correctly.
+ *
+ * The image is read in strips one tile high. Pixels are read at most
+ * MAX_STRIP_PIXELS at a time, except that an image file is decoded in one pass
+ * from top to bottom when its reader allows it, holding one strip as wide as
+ * the image: reading a region of a JPEG or PNG file decodes the file from the
+ * top, so reading it strip by strip would take time quadratic in the number of
+ * strips. Reading a tile from disk only reads its levels down to the one a
+ * view asks for, and at most a given number of bytes of tiles are cached,
+ * besides the tile being read. Views find their tile through the cache, so an
+ * evicted tile is read again rather than kept alive by the views; the memory
+ * used therefore does not depend on the size of the image, apart from the
+ * upper levels, which have one node per tile.
+ *
+ * The tree is read through QTreeNode views, so getPixels, findNode,
+ * findMatching, DrawImage and QuadTreeRenderer work on it unchanged. For
+ * images of at most 4096x4096 pixels, whose channel sums QuadrantTree.build
+ * computes exactly, it is identical to the one built by new
+ * QuadrantTree(pixels); beyond that the in-memory builds wrap their sums
+ * around while the pyramid keeps them exact. buildIndex and computeColorBounds would read every
+ * tile and keep the whole tree in memory, so they throw a QTreeException.
+ *
+ * @author adamm
+ */
+public class TiledPyramid extends QuadrantTree {
+
+	/** Default size of the tiles. */
+	public static final int DEFAULT_TILE_SIZE = 256;
+	/** Default memory for cached tiles: 64 tiles of the default size. */
+	public static final long DEFAULT_CACHE_BUDGET = 64L * 4 * ImplicitQuadrantTree.levelStart(9);
+	/** Largest number of pixels read from the image at once. */
+	public static final int MAX_STRIP_PIXELS = 1 << 22;
+
+	private int width;         // Size of the root
+	private int tileSize;
+	private int tileLevels;    // Level of the leaves within a tile
+	private int topLevels;     // Level of the tile roots
+	private int recordInts;    // Colors stored per tile
+	private int[] topColors;   // Colors of the levels above the tiles, breadth first
+
+	private File file;
+	private FileChannel channel;
+	private ByteBuffer buffer;
+	private LinkedHashMap<Integer, Tile> tiles;
+	private long cacheBudget, cachedInts;
+	private int tileReads;
+
+	/**
+	 * A source of pixels, read one rectangle at a time.
+	 */
+	private interface PixelSource {
+		/**
+		 * Reads the pixels of a rectangle, row by row; pixels outside the image
+		 * are 0.
+		 *
+		 * @param row   The first row.
+		 * @param col   The first column.
+		 * @param rows  The number of rows.
+		 * @param cols  The number of columns.
+		 * @param into  The array receiving the pixels.
+		 * @throws IOException if the image cannot be read.
+		 */
+		void read(int row, int col, int rows, int cols, int[] into) throws IOException;
+	}
+
+	/**
+	 * Constructs the TiledPyramid of the given pixels with the default tile size
+	 * and cache budget.
+	 *
+	 * @param thePixels The pixels.
+	 * @throws IOException if the tiles cannot be written.
+	 */
+	public TiledPyramid(PixelGrid thePixels) throws IOException {
+		this(thePixels, DEFAULT_TILE_SIZE, DEFAULT_CACHE_BUDGET);
+	}
+
+	/**
+	 * Constructs the TiledPyramid of the given pixels.
+	 *
+	 * @param thePixels      The pixels.
+	 * @param theTileSize    The size of the tiles, a power of 2 of at least 2.
+	 * @param theCacheBudget The largest number of bytes of tiles kept in memory.
+	 * @throws IOException if the tiles cannot be written.
+	 */
+	public TiledPyramid(PixelGrid thePixels, int theTileSize, long theCacheBudget) throws IOException {
+		this(thePixels.getSize(), theTileSize, theCacheBudget);
+		long start = System.nanoTime();
+		build((row, col, rows, cols, into) -> {
+			for (int j = 0; j < rows; j++) {
+				for (int i = 0; i < cols; i++) {
+					into[j * cols + i] = thePixels.get(row + j, col + i);
+				}
+			}
+		});
+		setBuildTime(System.nanoTime() - start);
+	}
+
+	/**
+	 * Constructs the TiledPyramid of the size x size square at the upper left
+	 * corner of the image stored in the given file. The image is decoded one
+	 * strip at a time, so it is never held in memory as a whole.
+	 *
+	 * @param imageFile      The file storing the image.
+	 * @param theSize        The size of the square, a power of 2.
+	 * @param theTileSize    The size of the tiles, a power of 2 of at least 2.
+	 * @param theCacheBudget The largest number of bytes of tiles kept in memory.
+	 * @throws IOException if the image cannot be read or the tiles written.
+	 */
+	public TiledPyramid(File imageFile, int theSize, int theTileSize, long theCacheBudget) throws IOException {
+		this(theSize, theTileSize, theCacheBudget);
+		long start = System.nanoTime();
+		try (ImageInputStream input = ImageIO.createImageInputStream(imageFile)) {
+			Iterator<ImageReader> readers = (input == null) ? null : ImageIO.getImageReaders(input);
+			if (readers == null || !readers.hasNext()) {
+				throw new IOException("Unknown image format: " + imageFile);
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(input);
+				int imageWidth = reader.getWidth(0);
+				int imageHeight = reader.getHeight(0);
+				if (stream(reader)) {
+					setBuildTime(System.nanoTime() - start);
+					return;
+				}
+				build((row, col, rows, cols, into) -> {
+					Arrays.fill(into, 0, rows * cols, 0);
+					int w = Math.min(cols, imageWidth - col);
+					int h = Math.min(rows, imageHeight - row);
+					if (w <= 0 || h <= 0) {
+						return;
+					}
+					ImageReadParam param = reader.getDefaultReadParam();
+					param.setSourceRegion(new Rectangle(col, row, w, h));
+					BufferedImage strip = reader.read(0, param);
+					strip.getRGB(0, 0, w, h, into, 0, cols);
+				});
+			} finally {
+				reader.dispose();
+			}
+		}
+		setBuildTime(System.nanoTime() - start);
+	}
+
+	/**
+	 * Sets up an empty pyramid and the file storing its tiles.
+	 *
+	 * @param theSize        The size of the root.
+	 * @param theTileSize    The size of the tiles.
+	 * @param theCacheBudget The largest number of bytes of tiles kept in memory.
+	 * @throws IOException if the file cannot be created.
+	 */
+	private TiledPyramid(int theSize, int theTileSize, long theCacheBudget) throws IOException {
+		if (theSize < 2 || Integer.bitCount(theSize) != 1) {
+			throw new QTreeException("Invalid size");
+		}
+		if (theTileSize < 2 || Integer.bitCount(theTileSize) != 1) {
+			throw new QTreeException("Invalid tile size");
+		}
+		this.width = theSize;
+		this.tileSize = Math.min(theTileSize, theSize);
+		this.tileLevels = Integer.numberOfTrailingZeros(tileSize);
+		this.topLevels = Integer.numberOfTrailingZeros(width / tileSize);
+		this.recordInts = ImplicitQuadrantTree.levelStart(tileLevels + 1);
+		this.topColors = new int[ImplicitQuadrantTree.levelStart(topLevels + 1)];
+		this.cacheBudget = theCacheBudget;
+		this.tiles = new LinkedHashMap<>(16, 0.75f, true);
+		this.buffer = ByteBuffer.allocate(4 * recordInts);
+		this.file = File.createTempFile("pyramid", ".tiles");
+		this.file.deleteOnExit();
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * Reads the image one strip of tiles at a time, writes the tiles and
+	 * computes the upper levels.
+	 *
+	 * @param source The pixels of the image.
+	 * @throws IOException if the image cannot be read or the tiles written.
+	 */
+	private void build(PixelSource source) throws IOException {
+		int tilesPerSide = width / tileSize;
+		int cols = Math.max(tileSize, Math.min(width, MAX_STRIP_PIXELS / tileSize / tileSize * tileSize));
+		int[] strip = new int[tileSize * cols];
+		StripWriter writer = new StripWriter();
+		for (int s = 0; s < tilesPerSide; s++) {
+			for (int c0 = 0; c0 < width; c0 += cols) {
+				source.read(s * tileSize, c0, tileSize, cols, strip);
+				writer.write(s, c0, cols, strip);
+			}
+		}
+		writer.finish();
+	}
+
+	/**
+	 * Decodes the image in one pass from top to bottom, writing every strip of
+	 * tiles once its last row is decoded, and computes the upper levels. The
+	 * reader decodes into an image whose sample model stores each row into the
+	 * strip instead of keeping the pixels.
+	 *
+	 * @param reader The reader of the image.
+	 * @return True if the pyramid was built, or false if the image has an alpha
+	 *         channel or a color model other than 8-bit gray or RGB, or the
+	 *         reader decodes it in several passes, as for progressive JPEGs.
+	 * @throws IOException if the image cannot be read or the tiles written.
+	 */
+	private boolean stream(ImageReader reader) throws IOException {
+		Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+		ImageTypeSpecifier type = types.hasNext() ? types.next() : null;
+		if (type == null || !(type.getColorModel() instanceof ComponentColorModel) || type.getColorModel().hasAlpha()
+				|| type.getSampleModel().getDataType() != DataBuffer.TYPE_BYTE
+				|| (type.getNumBands() != 1 && type.getNumBands() != 3)) {
+			return false;
+		}
+		ColorModel model = new ComponentColorModel(type.getColorModel().getColorSpace(), false, false,
+				Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+		StripStream stream = new StripStream(reader, type.getNumBands());
+
+		// An image has fewer than 2^31 pixels, so a larger one is read in bands,
+		// each decoded from the top
+		int cols = stream.cols;
+		int band = Math.max(tileSize, (Integer.MAX_VALUE - 1) / cols / tileSize * tileSize);
+		try {
+			for (int top = 0; top < stream.rows && !stream.aborted; top += band) {
+				int rows = Math.min(band, stream.rows - top);
+				RowSampleModel rowModel = new RowSampleModel(stream, top, cols, rows);
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceRegion(new Rectangle(0, top, cols, rows));
+				param.setDestination(new BufferedImage(model,
+						Raster.createWritableRaster(rowModel, new EmptyBuffer(), null), false, null));
+				reader.read(0, param);
+			}
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		if (stream.aborted) {
+			return false;
+		}
+		stream.finish();
+		return true;
+	}
+
+	/**
+	 * Converts exact channel sums over a square region into the average color of
+	 * the region, rounding like Gui.averageColor.
+	 *
+	 * @param r    The sum of the red channel.
+	 * @param g    The sum of the green channel.
+	 * @param b    The sum of the blue channel.
+	 * @param size The size of the region.
+	 * @return The average color of the region.
+	 */
+	static int averageColor(long r, long g, long b, long size) {
+		long n = size * size;
+		return (int) (((r / n) & 0xFF) << 16) + (int) (((g / n) & 0xFF) << 8) + (int) ((b / n) & 0xFF);
+	}
+
+	/**
+	 * Writes colors into the record of a tile.
+	 *
+	 * @param tile   The Morton code of the tile.
+	 * @param offset The index of the first color within the record.
+	 * @param data   The colors.
+	 * @param length The number of colors.
+	 * @throws IOException if the file cannot be written.
+	 */
+	private void writeInts(long tile, int offset, int[] data, int length) throws IOException {
+		buffer.clear();
+		buffer.asIntBuffer().put(data, 0, length);
+		buffer.limit(4 * length);
+		long position = 4 * (tile * recordInts + offset);
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	/**
+	 * Reads colors from the record of a tile.
+	 *
+	 * @param tile   The Morton code of the tile.
+	 * @param offset The index of the first color within the record.
+	 * @param data   The array receiving the colors, from index offset on.
+	 * @param length The number of colors.
+	 * @throws IOException if the file cannot be read.
+	 */
+	private void readInts(long tile, int offset, int[] data, int length) throws IOException {
+		buffer.clear();
+		buffer.limit(4 * length);
+		long position = 4 * (tile * recordInts + offset);
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position);
+			if (n < 0) {
+				throw new IOException("Truncated tile file");
+			}
+			position += n;
+		}
+		buffer.flip();
+		buffer.asIntBuffer().get(data, offset, length);
+	}
+
+	/**
+	 * Gets the colors of the tile with the given Morton code down to the given
+	 * level, reading the levels that are not cached from the file, and evicts
+	 * the least recently used tiles beyond the cache budget. The tile is looked
+	 * up on every call, so it is cached at most once and an evicted tile is read
+	 * again.
+	 *
+	 * @param code  The Morton code of the tile.
+	 * @param level The deepest level needed, within the tile.
+	 * @return The colors of the tile, down to at least the given level.
+	 */
+	private synchronized int[] load(int code, int level) {
+		Tile tile = tiles.get(code);
+		if (tile == null) {
+			tile = new Tile(code);
+			tiles.put(code, tile);
+		}
+		int needed = ImplicitQuadrantTree.levelStart(level + 1);
+		if (tile.colors.length < needed) {
+			int loaded = tile.colors.length;
+			int[] colors = Arrays.copyOf(tile.colors, needed);
+			try {
+				readInts(code, loaded, colors, needed - loaded);
+			} catch (IOException e) {
+				throw new QTreeException("Error reading tile: " + e.getMessage());
+			}
+			tile.colors = colors;
+			tileReads++;
+			cachedInts += needed - loaded;
+			Iterator<Tile> eldest = tiles.values().iterator();
+			while (4 * cachedInts > cacheBudget && eldest.hasNext()) {
+				Tile evicted = eldest.next();
+				if (evicted == tile) {
+					continue;
+				}
+				cachedInts -= evicted.colors.length;
+				eldest.remove();
+			}
+		}
+		return tile.colors;
+	}
+
+	/**
+	 * Would build a Morton index of every node, which reads every tile and
+	 * keeps the whole tree in memory.
+	 *
+	 * @throws QTreeException always.
+	 */
+	@Override
+	public void buildIndex() {
+		throw new QTreeException("Cannot index a tiled pyramid");
+	}
+
+	/**
+	 * Would compute the color bounds of every node, which reads every tile and
+	 * keeps two ints per node in memory.
+	 *
+	 * @throws QTreeException always.
+	 */
+	@Override
+	public void computeColorBounds() {
+		throw new QTreeException("Cannot compute the color bounds of a tiled pyramid");
+	}
+
+	/**
+	 * Gets the number of nodes of the tree, or Integer.MAX_VALUE if there are
+	 * more.
+	 *
+	 * @return The number of nodes.
+	 */
+	@Override
+	public int getNodeCount() {
+		return (int) Math.min(Integer.MAX_VALUE, (4L * width * width - 1) / 3);
+	}
+
+	/**
+	 * Gets the number of leaves of the tree, or Integer.MAX_VALUE if there are
+	 * more.
+	 *
+	 * @return The number of leaves.
+	 */
+	@Override
+	public int getLeafCount() {
+		return (int) Math.min(Integer.MAX_VALUE, (long) width * width);
+	}
+
+	/**
+	 * Gets the memory used by the upper levels and the cached tiles.
+	 *
+	 * @return The memory used, in bytes.
+	 */
+	@Override
+	public synchronized long getMemoryUsage() {
+		return 4L * (topColors.length + cachedInts);
+	}
+
+	/**
+	 * Gets the size of the tiles.
+	 *
+	 * @return The tile size.
+	 */
+	public int getTileSize() {
+		return this.tileSize;
+	}
+
+	/**
+	 * Gets the number of tiles kept in memory.
+	 *
+	 * @return The number of cached tiles.
+	 */
+	public synchronized int getCachedTileCount() {
+		return tiles.size();
+	}
+
+	/**
+	 * Gets the number of times tile levels were read from disk.
+	 *
+	 * @return The number of reads.
+	 */
+	public synchronized int getTileReads() {
+		return this.tileReads;
+	}
+
+	/**
+	 * Closes and deletes the file storing the tiles. The tree cannot be read
+	 * below the upper levels afterwards.
+	 *
+	 * @throws IOException if the file cannot be closed.
+	 */
+	public synchronized void close() throws IOException {
+		channel.close();
+		file.delete();
+		tiles.clear();
+		cachedInts = 0;
+	}
+
+	/**
+	 * Writes the tiles of the image one strip at a time and keeps the channel
+	 * sums of the tile roots, from which the upper levels are computed.
+	 */
+	private class StripWriter {
+
+		private int[] leaves = new int[tileSize * tileSize];
+		private int[] red = new int[tileSize * tileSize];
+		private int[] green = new int[tileSize * tileSize];
+		private int[] blue = new int[tileSize * tileSize];
+		private int[] inner = new int[ImplicitQuadrantTree.levelStart(tileLevels)];
+		private long[] topRed = new long[topColors.length];
+		private long[] topGreen = new long[topColors.length];
+		private long[] topBlue = new long[topColors.length];
+
+		/**
+		 * Writes the tiles of a part of a strip.
+		 *
+		 * @param s     The row of the strip, in tiles.
+		 * @param c0    The first column of the part, a multiple of the tile size.
+		 * @param cols  The number of columns of the part, a multiple of the tile
+		 *              size.
+		 * @param strip The pixels of the part, row by row.
+		 * @throws IOException if the tiles cannot be written.
+		 */
+		void write(int s, int c0, int cols, int[] strip) throws IOException {
+			int top = ImplicitQuadrantTree.levelStart(topLevels);
+			for (int t = c0 / tileSize; t < (c0 + cols) / tileSize; t++) {
+				int base = t * tileSize - c0;
+
+				// The leaves of the tile in column s and row t store the pixels
+				// of this block transposed, as QuadrantTree does
+				for (int j = 0; j < tileSize; j++) {
+					for (int i = 0; i < tileSize; i++) {
+						leaves[(int) Morton.encode(j, i)] = strip[j * cols + base + i];
+					}
+				}
+				writeInts(Morton.encode(s, t), recordInts - leaves.length, leaves, leaves.length);
+
+				// The inner nodes of the tile in column t and row s average
+				// the pixels of this block
+				for (int j = 0; j < tileSize; j++) {
+					for (int i = 0; i < tileSize; i++) {
+						int pixel = strip[j * cols + base + i];
+						int slot = (int) Morton.encode(i, j);
+						red[slot] = (pixel >> 16) & 0xFF;
+						green[slot] = (pixel >> 8) & 0xFF;
+						blue[slot] = pixel & 0xFF;
+					}
+				}
+				int size = 1;
+				for (int level = tileLevels - 1; level >= 0; level--) {
+					size = size * 2;
+					int start = ImplicitQuadrantTree.levelStart(level);
+					for (int p = 0; p < (1 << (2 * level)); p++) {
+						int c = 4 * p;
+						red[p] = red[c] + red[c + 1] + red[c + 2] + red[c + 3];
+						green[p] = green[c] + green[c + 1] + green[c + 2] + green[c + 3];
+						blue[p] = blue[c] + blue[c + 1] + blue[c + 2] + blue[c + 3];
+						inner[start + p] = BottomUpBuilder.averageColor(red[p], green[p], blue[p], size);
+					}
+				}
+				writeInts(Morton.encode(t, s), 0, inner, inner.length);
+				int index = top + (int) Morton.encode(t, s);
+				topRed[index] = red[0];
+				topGreen[index] = green[0];
+				topBlue[index] = blue[0];
+				topColors[index] = inner[0];
+			}
+		}
+
+		/**
+		 * Merges the tile roots up to the root, with exact sums, once every strip
+		 * was written.
+		 */
+		void finish() {
+			long size = tileSize;
+			for (int level = topLevels - 1; level >= 0; level--) {
+				size = size * 2;
+				int start = ImplicitQuadrantTree.levelStart(level);
+				for (int p = start; p < ImplicitQuadrantTree.levelStart(level + 1); p++) {
+					int c = ImplicitQuadrantTree.firstChild(p);
+					topRed[p] = topRed[c] + topRed[c + 1] + topRed[c + 2] + topRed[c + 3];
+					topGreen[p] = topGreen[c] + topGreen[c + 1] + topGreen[c + 2] + topGreen[c + 3];
+					topBlue[p] = topBlue[c] + topBlue[c + 1] + topBlue[c + 2] + topBlue[c + 3];
+					topColors[p] = averageColor(topRed[p], topGreen[p], topBlue[p], size);
+				}
+			}
+			setRoot(new TopView(null, 0, 0, 0, width, 0));
+		}
+	}
+
+	/**
+	 * Collects the rows of an image decoded in one pass into a strip as wide as
+	 * the pyramid, and writes the strip once its last row has been received.
+	 * Rows must arrive from top to bottom; a row received again means the reader
+	 * decodes in several passes, and the reading is aborted.
+	 */
+	private class StripStream {
+
+		private ImageReader reader;
+		private int bands;
+		private int rows, cols;     // Part of the image within the pyramid
+		private int[] strip = new int[tileSize * width];
+		private int row = -1;       // Last row received
+		private boolean aborted;
+		private StripWriter writer = new StripWriter();
+
+		StripStream(ImageReader theReader, int theBands) throws IOException {
+			this.reader = theReader;
+			this.bands = theBands;
+			this.rows = Math.min(reader.getHeight(0), width);
+			this.cols = Math.min(reader.getWidth(0), width);
+		}
+
+		/**
+		 * Stores a run of pixels of a row, given as gray or red, green and blue
+		 * samples.
+		 */
+		void store(int x, int y, int w, int[] samples, int from) {
+			if (aborted) {
+				return;
+			}
+			if (y < row) {
+				abort();
+				return;
+			}
+			while (row < y) {
+				// The rows of a strip are complete once a row below them arrives
+				row++;
+				if (row % tileSize == 0 && row > 0) {
+					writeStrip(row / tileSize - 1);
+				}
+			}
+			int offset = (y % tileSize) * width + x;
+			for (int i = 0, k = from; i < w; i++, k += bands) {
+				int pixel = (bands == 1) ? samples[k] * 0x010101
+						: (samples[k] << 16) | (samples[k + 1] << 8) | samples[k + 2];
+				strip[offset + i] = 0xFF000000 | pixel;
+			}
+		}
+
+		/**
+		 * Stops the reader, so the image is read another way.
+		 */
+		void abort() {
+			aborted = true;
+			reader.abort();
+		}
+
+		/**
+		 * Writes the last strips once the image was decoded; pixels below the
+		 * image are 0.
+		 */
+		void finish() throws IOException {
+			int last = row / tileSize;
+			Arrays.fill(strip, (row % tileSize + 1) * width, strip.length, 0);
+			writeStrip(last);
+			Arrays.fill(strip, 0);
+			for (int s = last + 1; s < width / tileSize; s++) {
+				writeStrip(s);
+			}
+			writer.finish();
+		}
+
+		private void writeStrip(int s) {
+			try {
+				writer.write(s, 0, width, strip);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	/**
+	 * The sample model of a band of rows of the image being decoded, which
+	 * passes the pixels written into it on to a StripStream instead of storing
+	 * them.
+	 */
+	private static class RowSampleModel extends PixelInterleavedSampleModel {
+
+		private StripStream stream;
+		private int top;    // Row of the image of the first row of the band
+
+		RowSampleModel(StripStream theStream, int theTop, int w, int h) {
+			super(DataBuffer.TYPE_BYTE, w, h, theStream.bands, theStream.bands * w,
+					theStream.bands == 1 ? new int[] {0} : new int[] {0, 1, 2});
+			this.stream = theStream;
+			this.top = theTop;
+		}
+
+		@Override
+		public void setPixels(int x, int y, int w, int h, int[] samples, DataBuffer data) {
+			for (int j = 0; j < h; j++) {
+				stream.store(x, top + y + j, w, samples, j * w * stream.bands);
+			}
+		}
+
+		@Override
+		public void setPixel(int x, int y, int[] samples, DataBuffer data) {
+			stream.store(x, top + y, 1, samples, 0);
+		}
+
+		@Override
+		public void setDataElements(int x, int y, Object pixel, DataBuffer data) {
+			byte[] bytes = (byte[]) pixel;
+			int[] samples = new int[stream.bands];
+			for (int b = 0; b < samples.length; b++) {
+				samples[b] = bytes[b] & 0xFF;
+			}
+			stream.store(x, top + y, 1, samples, 0);
+		}
+
+		@Override
+		public void setSample(int x, int y, int b, int s, DataBuffer data) {
+			// Single samples cannot be passed on as pixels
+			stream.abort();
+		}
+
+		@Override
+		public SampleModel createSubsetSampleModel(int[] bands) {
+			return this;
+		}
+	}
+
+	/**
+	 * The data buffer of a RowSampleModel, which stores nothing.
+	 */
+	private static class EmptyBuffer extends DataBuffer {
+
+		EmptyBuffer() {
+			super(DataBuffer.TYPE_BYTE, 1);
+		}
+
+		@Override
+		public int getElem(int bank, int i) {
+			return 0;
+		}
+
+		@Override
+		public void setElem(int bank, int i, int value) {
+		}
+	}
+
+	/**
+	 * The colors of a tile read so far, breadth first.
+	 */
+	private static class Tile {
+
+		private int code;
+		private int[] colors = new int[0];
+
+		Tile(int theCode) {
+			this.code = theCode;
+		}
+	}
+
+	/**
+	 * A read-only view of a node above the tiles, or of the root of a tile.
+	 */
+	private class TopView extends QTreeNodeView {
+
+		private int index, level;
+
+		TopView(QTreeNode theParent, int theIndex, int x, int y, int size, int theLevel) {
+			super(theParent, x, y, size, topColors[theIndex]);
+			this.index = theIndex;
+			this.level = theLevel;
+		}
+
+		@Override
+		public boolean isLeaf() {
+			return false;
+		}
+
+		@Override
+		protected QTreeNode childView(int i) {
+			int half = getSize() / 2;
+			int x = getx() + (i & 1) * half;
+			int y = gety() + (i >> 1) * half;
+			if (level < topLevels) {
+				return new TopView(this, ImplicitQuadrantTree.firstChild(index) + i, x, y, half, level + 1);
+			}
+			return new TileView(this, index - ImplicitQuadrantTree.levelStart(topLevels), 1 + i, x, y, half, 1);
+		}
+	}
+
+	/**
+	 * A read-only view of a node below the root of a tile.
+	 */
+	private class TileView extends QTreeNodeView {
+
+		private int tile;          // Morton code of the tile
+		private int index, level;  // Index and level within the tile
+
+		TileView(QTreeNode theParent, int theTile, int theIndex, int x, int y, int size, int theLevel) {
+			super(theParent, x, y, size, load(theTile, theLevel)[theIndex]);
+			this.tile = theTile;
+			this.index = theIndex;
+			this.level = theLevel;
+		}
+
+		@Override
+		public boolean isLeaf() {
+			return level == tileLevels;
+		}
+
+		@Override
+		protected QTreeNode childView(int i) {
+			int half = getSize() / 2;
+			int x = getx() + (i & 1) * half;
+			int y = gety() + (i >> 1) * half;
+			return new TileView(this, tile, ImplicitQuadrantTree.firstChild(index) + i, x, y, half, level + 1);
+		}
+	}
+}
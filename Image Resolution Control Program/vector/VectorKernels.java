@@ -0,0 +1,136 @@
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Versions of the ColorKernels loops written with the incubating Vector API,
+ * which process a whole SIMD register of pixels or colors per step. The
+ * results are bit for bit those of ColorKernels, which looks these methods up
+ * only when the jdk.incubator.vector module is present.
+ *
+ * This class is kept out of src so that the rest of the program compiles
+ * without the module. It is compiled and run with the module added, next to
+ * the classes of src:
+ *
+ * javac --add-modules jdk.incubator.vector -cp bin -d bin vector/VectorKernels.java
+ * java --add-modules jdk.incubator.vector -cp bin DrawImage ...
+ *
+ * The channels are summed and compared in the same way as in ColorKernels:
+ * red and blue are added together under the 0x00FF00FF mask for at most
+ * ColorKernels.CHUNK pixels at a time, and a color is similar when the sign
+ * bits of the six tolerance tests are all clear.
+ *
+ * @author adamm
+ */
+public class VectorKernels {
+
+	private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+	private static final int TOLERANCE = 15; // Gui.similarColor accepts channel differences below 15
+
+	/**
+	 * Adds the red, green and blue channels of a run of pixels to the given
+	 * sums, like ColorKernels.addChannels.
+	 *
+	 * @param row  The packed ARGB pixels.
+	 * @param from The index of the first pixel.
+	 * @param to   The index after the last pixel.
+	 * @param sums The red, green and blue sums, in that order.
+	 */
+	public static void addChannels(int[] row, int from, int to, int[] sums) {
+		int red = 0, green = 0, blue = 0;
+		for (int start = from; start < to; start += ColorKernels.CHUNK) {
+			int end = Math.min(start + ColorKernels.CHUNK, to);
+			IntVector redBlue = IntVector.zero(SPECIES), greens = IntVector.zero(SPECIES);
+			int i = start;
+			for (int bound = start + SPECIES.loopBound(end - start); i < bound; i += SPECIES.length()) {
+				IntVector pixel = IntVector.fromArray(SPECIES, row, i);
+				redBlue = redBlue.add(pixel.and(0x00FF00FF));
+				greens = greens.add(pixel.lanewise(VectorOperators.LSHR, 8).and(0xFF));
+			}
+			int sum = redBlue.reduceLanes(VectorOperators.ADD);
+			green += greens.reduceLanes(VectorOperators.ADD);
+			for (; i < end; i++) {
+				int pixel = row[i];
+				sum += pixel & 0x00FF00FF;
+				green += (pixel >>> 8) & 0xFF;
+			}
+			red += sum >>> 16;
+			blue += sum & 0xFFFF;
+		}
+		sums[0] += red;
+		sums[1] += green;
+		sums[2] += blue;
+	}
+
+	/**
+	 * Counts the colors of a run of an array that are similar to the given
+	 * color, like ColorKernels.countSimilar.
+	 *
+	 * @param colors The colors.
+	 * @param from   The index of the first color.
+	 * @param to     The index after the last color.
+	 * @param color  The color to match.
+	 * @return The number of colors similar to color.
+	 */
+	public static int countSimilar(int[] colors, int from, int to, int color) {
+		int count = 0;
+		int i = from;
+		for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += SPECIES.length()) {
+			count += similar(IntVector.fromArray(SPECIES, colors, i), color).trueCount();
+		}
+		for (; i < to; i++) {
+			count += ColorKernels.similarColor(colors[i], color) ? 1 : 0;
+		}
+		return count;
+	}
+
+	/**
+	 * Stores the indices of the colors of a run of an array that are similar to
+	 * the given color, in increasing order, like ColorKernels.findSimilar.
+	 *
+	 * @param colors  The colors.
+	 * @param from    The index of the first color.
+	 * @param to      The index after the last color.
+	 * @param color   The color to match.
+	 * @param indices The array receiving the indices, with room for to - from
+	 *                of them.
+	 * @return The number of indices stored.
+	 */
+	public static int findSimilar(int[] colors, int from, int to, int color, int[] indices) {
+		int count = 0;
+		int i = from;
+		for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += SPECIES.length()) {
+			// Most runs have no match, and are skipped with one test
+			long bits = similar(IntVector.fromArray(SPECIES, colors, i), color).toLong();
+			while (bits != 0) {
+				indices[count++] = i + Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+			}
+		}
+		for (; i < to; i++) {
+			indices[count] = i;
+			count += ColorKernels.similarColor(colors[i], color) ? 1 : 0;
+		}
+		return count;
+	}
+
+	/**
+	 * Tests a vector of colors for similarity with a color.
+	 *
+	 * @param colors The colors.
+	 * @param color  The color to match.
+	 * @return The lanes whose colors are similar to color.
+	 */
+	private static VectorMask<Integer> similar(IntVector colors, int color) {
+		int limit = 2 * (TOLERANCE - 1);
+		IntVector signs = IntVector.zero(SPECIES);
+		for (int shift = 0; shift <= 16; shift += 8) {
+			IntVector d = colors.lanewise(VectorOperators.ASHR, shift).and(0xFF)
+					.add((TOLERANCE - 1) - ((color >> shift) & 0xFF));
+			signs = signs.or(d).or(d.neg().add(limit));
+		}
+		return signs.compare(VectorOperators.GE, 0);
+	}
+}